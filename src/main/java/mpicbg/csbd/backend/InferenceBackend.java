@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.backend;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import org.tensorflow.DataType;
+
+/**
+ * Runs a model on the tensors of a tiled prediction. Inputs and outputs are
+ * plain buffers in Java memory, so the tiling, conversion and stitching do
+ * not depend on the library executing the model. Implementations can be
+ * called from {@link #getConcurrency()} threads at the same time.
+ */
+public interface InferenceBackend extends AutoCloseable {
+
+	/**
+	 * @return the number of runs which can execute at the same time
+	 */
+	int getConcurrency();
+
+	/**
+	 * @return the type of the input buffers, {@link DataType#FLOAT} or
+	 *         {@link DataType#UINT8}
+	 */
+	DataType getInputDataType();
+
+	/**
+	 * Copies an input into the memory of the backend. A tiled prediction
+	 * calls this while converting the tiles, so that the copy does not hold
+	 * up the runs of the model. The buffer is read from its position, stored
+	 * in row-major order and in native byte order. It is not modified and can
+	 * be reused once the call returns.
+	 */
+	Input prepare( long[] shape, ByteBuffer input );
+
+	/**
+	 * Runs the model on a prepared input. The input stays open.
+	 *
+	 * @return the output or null if the model did not return a usable result
+	 */
+	Output run( Input input ) throws InterruptedException;
+
+	/**
+	 * @return the number of outputs returned by {@link #runAll(Input)}
+	 */
+	default int getOutputCount() {
+		return 1;
+	}
+
+	/**
+	 * Runs the model on a prepared input and returns all of its outputs in
+	 * one run, starting with the output of {@link #run(Input)}. The input
+	 * stays open.
+	 *
+	 * @return the outputs or null if the model did not return a usable result
+	 */
+	default List< Output > runAll( final Input input ) throws InterruptedException {
+		final Output output = run( input );
+		return output != null ? Collections.singletonList( output ) : null;
+	}
+
+	/**
+	 * Prepares the buffer and runs the model on it, see
+	 * {@link #prepare(long[], ByteBuffer)}.
+	 */
+	default Output run( final long[] shape, final ByteBuffer input ) throws InterruptedException {
+		try (Input prepared = prepare( shape, input )) {
+			return run( prepared );
+		}
+	}
+
+	/**
+	 * Prepares the backend for inputs of the given shape, e.g. by running the
+	 * model once.
+	 */
+	void warmUp( long[] shape ) throws InterruptedException;
+
+	@Override
+	void close();
+
+	/**
+	 * An input staged by {@link InferenceBackend#prepare(long[], ByteBuffer)}.
+	 */
+	interface Input extends AutoCloseable {
+
+		long[] shape();
+
+		@Override
+		void close();
+
+	}
+
+	/**
+	 * The float result of a run.
+	 */
+	interface Output extends AutoCloseable {
+
+		long[] shape();
+
+		/**
+		 * Copies the values in row-major order into {@code array}, which has
+		 * at least as many elements as the output.
+		 */
+		void writeTo( float[] array );
+
+		@Override
+		void close();
+
+	}
+
+}
@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.backend;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import org.tensorflow.DataType;
+
+import mpicbg.csbd.tensorflow.TensorBufferPool;
+
+/**
+ * Deterministic stand-in for a network, implemented in plain Java. It applies
+ * a box filter of the given radius to all dimensions between the first
+ * (batch) and the last (channel) dimension of the tensor, with zeros outside
+ * the input. A radius of 0 returns the input. Tiled predictions with an
+ * overlap of at least the radius give the same result as an untiled one,
+ * which makes the backend useful to test and benchmark the tiling pipeline
+ * without a native library.
+ */
+public class ReferenceBackend implements InferenceBackend {
+
+	private final DataType inputDataType;
+	private final int radius;
+	private final int concurrency;
+
+	public ReferenceBackend( final int radius ) {
+		this( DataType.FLOAT, radius, 1 );
+	}
+
+	public ReferenceBackend( final DataType inputDataType, final int radius, final int concurrency ) {
+		if ( inputDataType != DataType.FLOAT && inputDataType != DataType.UINT8 ) { throw new IllegalArgumentException(
+				"Unsupported input type " + inputDataType + "." ); }
+		this.inputDataType = inputDataType;
+		this.radius = radius;
+		this.concurrency = Math.max( 1, concurrency );
+	}
+
+	@Override
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	@Override
+	public DataType getInputDataType() {
+		return inputDataType;
+	}
+
+	@Override
+	public Input prepare( final long[] shape, final ByteBuffer input ) {
+		final int size = ( int ) TensorBufferPool.numElements( shape );
+		final float[] values = new float[ size ];
+		if ( inputDataType == DataType.FLOAT ) {
+			input.duplicate().order( input.order() ).asFloatBuffer().get( values );
+		} else {
+			final ByteBuffer bytes = input.duplicate();
+			for ( int i = 0; i < size; i++ ) {
+				values[ i ] = bytes.get() & 0xff;
+			}
+		}
+		return new ArrayData( shape.clone(), values );
+	}
+
+	@Override
+	public Output run( final Input input ) {
+		final long[] shape = input.shape();
+		float[] values = ( ( ArrayData ) input ).values;
+		if ( radius > 0 ) {
+			for ( int d = 1; d < shape.length - 1; d++ ) {
+				values = filter( values, shape, d );
+			}
+		}
+		return new ArrayData( shape, values );
+	}
+
+	@Override
+	public void warmUp( final long[] shape ) {}
+
+	@Override
+	public void close() {}
+
+	/**
+	 * Box filter along dimension {@code d}, zero outside of the input.
+	 */
+	private float[] filter( final float[] values, final long[] shape, final int d ) {
+		int step = 1;
+		for ( int i = shape.length - 1; i > d; i-- ) {
+			step *= shape[ i ];
+		}
+		final int length = ( int ) shape[ d ];
+		final int outer = values.length / ( step * length );
+		final float norm = 1f / ( 2 * radius + 1 );
+		final float[] result = new float[ values.length ];
+		for ( int o = 0; o < outer; o++ ) {
+			for ( int s = 0; s < step; s++ ) {
+				final int start = o * step * length + s;
+				for ( int x = 0; x < length; x++ ) {
+					float sum = 0;
+					for ( int k = Math.max( 0, x - radius ); k <= Math.min( length - 1, x + radius ); k++ ) {
+						sum += values[ start + k * step ];
+					}
+					result[ start + x * step ] = sum * norm;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Values of an input or output in a float array.
+	 */
+	private static class ArrayData implements Input, Output {
+
+		private final long[] shape;
+		private final float[] values;
+
+		ArrayData( final long[] shape, final float[] values ) {
+			this.shape = shape;
+			this.values = values;
+		}
+
+		@Override
+		public long[] shape() {
+			return shape.clone();
+		}
+
+		@Override
+		public void writeTo( final float[] array ) {
+			FloatBuffer.wrap( array ).put( values );
+		}
+
+		@Override
+		public void close() {}
+
+	}
+
+}
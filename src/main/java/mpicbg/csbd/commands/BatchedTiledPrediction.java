@@ -35,12 +35,9 @@ import java.util.concurrent.ExecutionException;
 
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.Intervals;
 
 import org.tensorflow.SavedModelBundle;
 
-import mpicbg.csbd.imglib2.ArrangedView;
-import mpicbg.csbd.imglib2.CombinedView;
 import mpicbg.csbd.imglib2.TiledView;
 import mpicbg.csbd.tensorflow.DatasetTensorBridge;
 import mpicbg.csbd.ui.CSBDeepProgress;
@@ -80,10 +77,17 @@ public class BatchedTiledPrediction extends TiledPrediction {
 		final TiledView< FloatType > tiledView = preprocess();
 		System.out.println( "batchDim  : " + batchDim );
 		System.out.println( "channelDim: " + channelDim );
-		System.out.println( "largestDim: " + largestDim );
 		final long[] tileSize = tiledView.getBlockSize();
 		batchDimSize = tileSize[ batchDim ];
 		System.out.println( "batchDimSize  : " + batchDimSize );
+		if ( tilePlanner != null ) {
+			final long[] sliceDims = new long[ tileSize.length ];
+			for ( int i = 0; i < sliceDims.length; i++ ) {
+				sliceDims[ i ] = i == batchDim ? 1 : tileSize[ i ] + 2 * padding[ i ];
+			}
+			batchSize = tilePlanner.planBatchSize( sliceDims, batchSize );
+			progressWindow.addLog( "Memory budget allows a batch size of " + batchSize + ".." );
+		}
 		nBatches = ( int ) Math.ceil( ( float ) batchDimSize / ( float ) batchSize );
 		// If a smaller batch size is sufficient for the same amount of batches, we can use it
 		batchSize = ( int ) Math.ceil( ( float ) batchDimSize / ( float ) nBatches );
@@ -95,9 +99,9 @@ public class BatchedTiledPrediction extends TiledPrediction {
 		final RandomAccessibleInterval< FloatType > expandedInput2 =
 				expandDimToSize( expandedInput, batchDim, expandedBatchDimSize );
 		final TiledView< FloatType > tiledView2 =
-				new TiledView<>( expandedInput2, tileSize, padding );
+				new TiledView<>( expandedInput2, tileSize, padding, borderPadding );
 
-		final List< RandomAccessibleInterval< FloatType > > results = runModel( tiledView2 );
+		final RandomAccessibleInterval< FloatType > result = runModel( tiledView2 );
 
 //			final ImageJ ij = new ImageJ();
 //			int i = 0;
@@ -106,146 +110,47 @@ public class BatchedTiledPrediction extends TiledPrediction {
 //				i++;
 //			}
 
-		return postprocess( results );
+		return postprocess( result );
 	}
 
 	@Override
-	protected TiledView< FloatType > preprocess() {
-
-		if ( input != null ) {
-
-			final long[] dims = new long[ input.numDimensions() ];
-			input.dimensions( dims );
-			progressWindow.addLog( "Image dimensions: " + Arrays.toString( dims ) );
-			progressWindow.addLog( "Calculate mapping between image and tensor.." );
-
-			largestDim = getLargestDim( input, bridge );
-			largestSize = input.dimension( largestDim );
-
-			//get mapping for input tensor (index is input image dimension index, value is tensor index)
-			mappingIn = new int[ bridge.getInputTensorInfo().getTensorShape().getDimCount() ];
-			//get mapping for input tensor (index is input image dimension index, value is tensor index)
-			mappingOut = new int[ bridge.getOutputTensorInfo().getTensorShape().getDimCount() ];
-			calculateMapping( mappingIn, mappingOut, bridge );
-
-			progressWindow.addLog( "mappingIn: " + Arrays.toString( mappingIn ) );
-			progressWindow.addLog( "mappingOut: " + Arrays.toString( mappingOut ) );
-
-			progressWindow.addLog( "Divide image into " + nTiles + " tile(s).." );
-
-			padding = new long[ input.numDimensions() ];
-
-			// Calculate the blocksize to use
-			final double blockwidthIdeal = largestSize / ( double ) nTiles;
-			final long blockwidth =
-					( long ) ( Math.ceil( blockwidthIdeal / blockMultiple ) * blockMultiple );
-
-			// Expand the image to fit the blocksize
-			expandedInput = expandDimToSize( input, largestDim, blockwidth * nTiles );
-
-			long[] imdims = new long[ expandedInput.numDimensions() ];
-			expandedInput.dimensions( imdims );
-			System.out.println( "imdims1: " + Arrays.toString( imdims ) );
-
-			// Expand other dimensions to fit blockMultiple
-			for ( int i = 0; i < expandedInput.numDimensions(); i++ ) {
-				if ( i != largestDim && i != batchDim && i != channelDim ) {
-					expandedInput = expandDimToSize(
-							expandedInput,
-							i,
-							( long ) Math.ceil(
-									expandedInput.dimension(
-											i ) / ( double ) blockMultiple ) * blockMultiple );
-				}
-			}
-
-			imdims = new long[ expandedInput.numDimensions() ];
-			expandedInput.dimensions( imdims );
-			System.out.println( "imdims2: " + Arrays.toString( imdims ) );
-//				printDim( "After expand", im );
-
-			// Set the tile size
-			final long[] tileSize = Intervals.dimensionsAsLongArray( expandedInput );
-			tileSize[ largestDim ] = blockwidth;
-
-			// Put the padding per dimension in an array
-
-			padding[ largestDim ] = overlap;
-
-			System.out.println( "tilesize: " + Arrays.toString( tileSize ) );
-
-			// Create the tiled view
-			final TiledView< FloatType > tiledView = new TiledView<>( expandedInput, tileSize, padding );
-
-			progressWindow.setCurrentStepDone();
-
-			return tiledView;
+	protected boolean isTileable( final int d ) {
+		return d != batchDim && d != channelDim && super.isTileable( d );
+	}
 
+	@Override
+	protected long[] getPlanningDims() {
+		final long[] dims = super.getPlanningDims();
+		if ( batchDim < dims.length ) {
+			dims[ batchDim ] = 1;
 		}
+		return dims;
+	}
 
-		return null;
+	@Override
+	protected boolean isExpandable( final int d ) {
+		return d != batchDim && d != channelDim;
+	}
 
+	@Override
+	protected long getOutputDimension( final int d, final RandomAccessibleInterval< FloatType > tile ) {
+		if ( d == channelDim ) { return tile.dimension( d ); }
+		if ( d == batchDim ) { return batchDimSize; }
+		return super.getOutputDimension( d, tile );
 	}
 
 	@Override
-	protected List< RandomAccessibleInterval< FloatType > > postprocess( final List< RandomAccessibleInterval< FloatType > > results ) {
+	protected List< RandomAccessibleInterval< FloatType > > postprocess( final RandomAccessibleInterval< FloatType > result ) {
 
-		if ( results != null && results.size() > 0 ) {
+		if ( result != null ) {
 
 			progressWindow.setStepStart( CSBDeepProgress.STEP_POSTPROCESSING );
 
-			progressWindow.addLog( "Merging tiles.." );
-
-			// Arrange and combine the tiles again
-			final long[] grid = new long[ results.get( 0 ).numDimensions() ];
-			for ( int i = 0; i < grid.length; i++ ) {
-				if ( i == largestDim ) {
-					grid[ i ] = nTiles;
-					continue;
-				}
-				if ( i == batchDim ) {
-					grid[ i ] = nBatches;
-					continue;
-				}
-				grid[ i ] = 1;
-			}
-			final long[] res0Dimension = new long[ results.get( 0 ).numDimensions() ];
-			results.get( 0 ).dimensions( res0Dimension );
-			System.out.println( "res0 dimensions: " + Arrays.toString( res0Dimension ) );
-			System.out.println( "nBatches: " + nBatches );
-			System.out.println( "nTiles: " + nTiles );
-			System.out.println( "grid: " + Arrays.toString( grid ) );
-			final RandomAccessibleInterval< FloatType > result =
-					new CombinedView<>( new ArrangedView<>( results, grid ) );
-
 			final long[] resDimension = new long[ result.numDimensions() ];
 			result.dimensions( resDimension );
 			System.out.println( "result dimensions: " + Arrays.toString( resDimension ) );
 
-			progressWindow.addLog( "Crop to original size.." );
-
-			RandomAccessibleInterval< FloatType > fittedResult =
-					expandDimToSize( result, largestDim, largestSize );
-
-			fittedResult.dimensions( resDimension );
-			System.out.println( "fittedResult dimensions: " + Arrays.toString( resDimension ) );
-
-			fittedResult = expandDimToSize( fittedResult, batchDim, batchDimSize );
-
-			fittedResult.dimensions( resDimension );
-			System.out.println( "fittedResult2 dimensions: " + Arrays.toString( resDimension ) );
-
-			// undo Expand other dimensions to fit blockMultiple
-			for ( int i = 0; i < input.numDimensions(); i++ ) {
-				if ( i != largestDim && i != batchDim && i != channelDim ) {
-					fittedResult = expandDimToSize( fittedResult, i, input.dimension( i ) );
-				}
-			}
-
-			fittedResult.dimensions( resDimension );
-			System.out.println( "fittedResult3 dimensions: " + Arrays.toString( resDimension ) );
-
-			if ( channelDim >= 0 && channelDim < fittedResult.numDimensions() ) { return splitChannels( fittedResult, channelDim ); }
+			if ( channelDim >= 0 && channelDim < result.numDimensions() ) { return splitChannels( result, channelDim ); }
 
 			progressWindow.setCurrentStepFail();
 			return null;
@@ -55,12 +55,12 @@ import net.imagej.display.DefaultDatasetView;
 import net.imagej.tensorflow.TensorFlowService;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
 import net.imglib2.img.ImgView;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.Intervals;
 
 import org.scijava.Cancelable;
 import org.scijava.Initializable;
@@ -70,14 +70,22 @@ import org.scijava.io.location.FileLocation;
 import org.scijava.io.location.Location;
 import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
+import org.scijava.prefs.PrefService;
 import org.scijava.ui.UIService;
+import org.tensorflow.DataType;
 import org.tensorflow.SavedModelBundle;
 import org.tensorflow.TensorFlowException;
 import org.tensorflow.framework.MetaGraphDef;
 import org.tensorflow.framework.SignatureDef;
+import org.tensorflow.framework.TensorInfo;
 
+import mpicbg.csbd.normalize.NormalizedView;
 import mpicbg.csbd.normalize.PercentileNormalizer;
 import mpicbg.csbd.tensorflow.DatasetTensorBridge;
+import mpicbg.csbd.tensorflow.InferenceEngine;
+import mpicbg.csbd.tensorflow.ModelCache;
+import mpicbg.csbd.tensorflow.RunProfile;
+import mpicbg.csbd.tensorflow.SessionConfig;
 import mpicbg.csbd.ui.CSBDeepProgress;
 
 public abstract class CSBDeepCommand< T extends RealType< T > > extends PercentileNormalizer< T >
@@ -106,12 +114,55 @@ public abstract class CSBDeepCommand< T extends RealType< T > > extends Percenti
 	@Parameter
 	protected DatasetService datasetService;
 
+	@Parameter
+	protected PrefService prefService;
+
 	@Parameter( label = "Number of tiles", min = "1" )
 	protected int nTiles = 8;
 
 	@Parameter( label = "Overlap between tiles", min = "0", stepSize = "16" )
 	protected int overlap = 32;
 
+	@Parameter( label = "Overlap at image borders (-1 = same as between tiles)", min = "-1", stepSize = "16" )
+	protected int borderOverlap = -1;
+
+	@Parameter( label = "Memory budget per tile (MB, 0 = off)", min = "0", stepSize = "256" )
+	protected int memoryBudget = TilePlanner.DEFAULT_MEMORY_BUDGET_MB;
+
+	@Parameter( label = "Autotune tile size" )
+	protected boolean autotune = false;
+
+	@Parameter( label = "Checkpoint directory (resume interrupted runs)", style = "directory", required = false )
+	protected File checkpointDir;
+
+	@Parameter( label = "Threads for tile conversion (0 = all cores)", min = "0" )
+	protected int conversionThreads = 0;
+
+	@Parameter( label = "Tiles predicted concurrently", min = "1" )
+	protected int concurrentTiles = 1;
+
+	@Parameter( label = "Tiles stacked per run", min = "1" )
+	protected int tilesPerRun = 1;
+
+	@Parameter( label = "Warm up the model before the first tile" )
+	protected boolean warmUp = false;
+
+	@Parameter( label = "Profile the time per operation" )
+	protected boolean profile = false;
+
+	@Parameter( label = "TensorFlow intra-op threads (0 = default)", min = "0" )
+	protected int intraOpThreads = 0;
+
+	@Parameter( label = "TensorFlow inter-op threads (0 = default)", min = "0" )
+	protected int interOpThreads = 0;
+
+	@Parameter( label = "Per session thread pools" )
+	protected boolean usePerSessionThreads = false;
+
+	@Parameter( label = "Graph optimizer level", choices = {
+			SessionConfig.OPTIMIZER_DEFAULT, SessionConfig.OPTIMIZER_L1, SessionConfig.OPTIMIZER_L0 } )
+	protected String optimizerLevel = SessionConfig.OPTIMIZER_DEFAULT;
+
 	@Parameter( type = ItemIO.OUTPUT, label = "result" )
 	protected List< DatasetView > resultDatasets;
 
@@ -124,7 +175,15 @@ public abstract class CSBDeepCommand< T extends RealType< T > > extends Percenti
 	protected SignatureDef sig;
 
 	protected SavedModelBundle model;
+	private ModelCache.Handle modelHandle;
+	protected InferenceEngine engine;
+	private RunProfile runProfile;
 	protected DatasetTensorBridge bridge;
+
+	/**
+	 * The URL of the model {@link #sig} was read from.
+	 */
+	private String loadedModelUrl;
 	protected boolean processedDataset = false;
 	private boolean useTensorFlowGPU = true;
 
@@ -178,14 +237,19 @@ public abstract class CSBDeepCommand< T extends RealType< T > > extends Percenti
 //		System.out.println("loadGraph");
 
 		final File file = new File( modelFileUrl );
-		Location source;
+		final Location source;
 		if ( !file.exists() ) {
 			source = new HTTPLocation( modelFileUrl );
 		} else {
 			source = new FileLocation( file );
 		}
 		try {
-			model = tensorFlowService.loadModel( source, modelName, MODEL_TAG );
+			final ModelCache.Handle handle = ModelCache.getInstance().acquire(
+					ModelCache.getKey( modelFileUrl, MODEL_TAG ),
+					() -> tensorFlowService.loadModel( source, modelName, MODEL_TAG ) );
+			releaseModel();
+			modelHandle = handle;
+			model = handle.getModel();
 		} catch ( TensorFlowException | IOException e ) {
 			e.printStackTrace();
 			return false;
@@ -193,6 +257,20 @@ public abstract class CSBDeepCommand< T extends RealType< T > > extends Percenti
 		return true;
 	}
 
+	/**
+	 * Returns the model to the {@link ModelCache}, which closes it once it is
+	 * no longer used and needs the memory.
+	 */
+	protected void releaseModel() {
+		releaseEngine();
+		if ( modelHandle != null ) {
+			modelHandle.close();
+			modelHandle = null;
+		}
+		model = null;
+		loadedModelUrl = null;
+	}
+
 	protected void modelChanged() {
 
 //		System.out.println("modelChanged");
@@ -202,35 +280,38 @@ public abstract class CSBDeepCommand< T extends RealType< T > > extends Percenti
 		if ( input == null ) { return; }
 
 		try {
-			if ( loadModel() ) {
+			// The signature only needs to be read once per model
+			if ( model == null || !modelFileUrl.equals( loadedModelUrl ) ) {
+				if ( !loadModel() ) { return; }
+				loadedModelUrl = modelFileUrl;
 
 				// Extract names from the model signature.
 				// The strings "input", "probabilities" and "patches" are meant to be
 				// in sync with the model exporter (export_saved_model()) in Python.
+				sig = null;
 				try {
 					sig = MetaGraphDef.parseFrom( model.metaGraphDef() ).getSignatureDefOrThrow(
 							DEFAULT_SERVING_SIGNATURE_DEF_KEY );
 				} catch ( final InvalidProtocolBufferException e ) {
 //					e.printStackTrace();
 				}
-				if ( sig != null && sig.isInitialized() ) {
-					if ( sig.getInputsCount() > 0 ) {
-						inputNodeName = sig.getInputsMap().keySet().iterator().next();
-						if ( bridge != null ) {
-							bridge.setInputTensor( sig.getInputsOrThrow( inputNodeName ) );
-						}
-					}
-					if ( sig.getOutputsCount() > 0 ) {
-						outputNodeName = sig.getOutputsMap().keySet().iterator().next();
-						if ( bridge != null ) {
-							bridge.setOutputTensor( sig.getOutputsOrThrow( outputNodeName ) );
-						}
+			}
+			if ( sig != null && sig.isInitialized() ) {
+				if ( sig.getInputsCount() > 0 ) {
+					inputNodeName = sig.getInputsMap().keySet().iterator().next();
+					if ( bridge != null ) {
+						bridge.setInputTensor( sig.getInputsOrThrow( inputNodeName ) );
 					}
-					if ( bridge != null && !bridge.isMappingInitialized() ) {
-						bridge.setMappingDefaults();
+				}
+				if ( sig.getOutputsCount() > 0 ) {
+					outputNodeName = sig.getOutputsMap().keySet().iterator().next();
+					if ( bridge != null ) {
+						bridge.setOutputTensor( sig.getOutputsOrThrow( outputNodeName ) );
 					}
 				}
-
+				if ( bridge != null && !bridge.isMappingInitialized() ) {
+					bridge.setMappingDefaults();
+				}
 			}
 		} catch ( MalformedURLException | URISyntaxException exc ) {
 			exc.printStackTrace();
@@ -299,13 +380,24 @@ public abstract class CSBDeepCommand< T extends RealType< T > > extends Percenti
 	}
 
 	protected RandomAccessibleInterval< FloatType > normalizeInput() {
+		if ( bridge.getInputDataType() == DataType.UINT8 ) {
+			// The model expects the raw 8 bit values
+			if ( normalizeInput ) {
+				progressWindow.addLog( "The model takes 8 bit input, the input is not normalized.." );
+			}
+			if ( bridge.isInputNarrowed() ) {
+				progressWindow.addError(
+						"The model takes 8 bit input, the input values are rounded and clamped to 0..255." );
+			}
+			return new NormalizedView<>( ( RandomAccessibleInterval ) input.getImgPlus(), null );
+		}
 		progressWindow.addLog( "Preparing normalization.. " );
 		prepareNormalization( ( IterableInterval ) input.getImgPlus() );
 
 		progressWindow.addLog(
 				"Normalize (" + percentileBottom + " - " + percentileTop + " -> " + min + " - " + max + "] .. " );
 
-		final RandomAccessibleInterval< FloatType > normalizedInput = normalizeImage(
+		final RandomAccessibleInterval< FloatType > normalizedInput = normalizeView(
 				( RandomAccessibleInterval ) input.getImgPlus() );
 
 		return normalizedInput;
@@ -315,31 +407,23 @@ public abstract class CSBDeepCommand< T extends RealType< T > > extends Percenti
 	protected void executeModel( final RandomAccessibleInterval< FloatType > modelInput ) {
 
 		List< RandomAccessibleInterval< FloatType > > result = null;
+		final TiledPrediction prediction;
 		try {
-			final TiledPrediction prediction =
+			prediction =
 					new TiledPrediction( modelInput, bridge, model, progressWindow, nTiles, blockMultiple, overlap );
+			configure( prediction );
 			predictions.add( prediction );
-			result = pool.submit( prediction ).get();
+			result = prediction.predictAsync( pool ).get();
 		} catch ( final ExecutionException exc ) {
 			exc.printStackTrace();
-
-			// We expect it to be an out of memory exception and
-			// try it again with more tiles.
-			nTiles *= 2;
-			// Check if the number of tiles is to large already
-			if ( Arrays.stream( Intervals.dimensionsAsLongArray( modelInput ) ).max().getAsLong() / nTiles < blockMultiple ) {
-				progressWindow.setCurrentStepFail();
-				return;
-			}
-			progressWindow.addError( "Out of memory exception occurred. Trying with " + nTiles + " tiles..." );
-			progressWindow.addRounds( 1 );
-			progressWindow.setNextRound();
-			executeModel( modelInput );
+			progressWindow.addError(
+					"Prediction failed. If the tiles do not fit into memory, lower the memory budget or increase the number of tiles." );
+			progressWindow.setCurrentStepFail();
 			return;
-
 		} catch ( final InterruptedException exc ) {
 			progressWindow.addError( "Process canceled." );
 			progressWindow.setCurrentStepFail();
+			return;
 		}
 
 		resultDatasets = new ArrayList<>();
@@ -347,13 +431,102 @@ public abstract class CSBDeepCommand< T extends RealType< T > > extends Percenti
 			progressWindow.addLog( "Displaying " + OUTPUT_NAMES[ i ] + " image.." );
 			resultDatasets.add( wrapIntoDatasetView( OUTPUT_NAMES[ i ], result.get( i ) ) );
 		}
+		// The additional outputs of a multi-head model
+		final List< Img< FloatType > > heads = prediction.getHeadOutputs();
+		for ( int i = 0; i < heads.size(); i++ ) {
+			if ( heads.get( i ) == null ) {
+				continue;
+			}
+			final String name = engine.getOutputTensorInfos().get( i + 1 ).getName();
+			progressWindow.addLog( "Displaying " + name + " image.." );
+			resultDatasets.add( wrapIntoDatasetView( name, heads.get( i ) ) );
+		}
 		if ( !resultDatasets.isEmpty() ) {
 			progressWindow.addLog( "All done!" );
 			progressWindow.setCurrentStepDone();
 		} else {
 			progressWindow.setCurrentStepFail();
 		}
-		model.close();
+	}
+
+	/**
+	 * The engine running the loaded model, see
+	 * {@link PredictionOptions#getEngine}.
+	 */
+	protected InferenceEngine getEngine() {
+		if ( engine == null ) {
+			engine = getPredictionOptions().getEngine( modelHandle, bridge, getOutputTensorInfos(), progressWindow );
+			runProfile = profile ? new RunProfile() : null;
+		}
+		return engine;
+	}
+
+	/**
+	 * The outputs of the signature, starting with the one the tiles are
+	 * predicted with.
+	 */
+	protected List< TensorInfo > getOutputTensorInfos() {
+		return InferenceEngine.getOutputTensorInfos( bridge.getOutputTensorInfo(), sig );
+	}
+
+	/**
+	 * Stops using the engine. It stays open with the model in the
+	 * {@link ModelCache}.
+	 */
+	protected void releaseEngine() {
+		if ( runProfile != null ) {
+			PredictionOptions.reportProfile( runProfile, progressWindow );
+			runProfile = null;
+		}
+		engine = null;
+	}
+
+	/**
+	 * Applies the tiling parameters of this command to a prediction.
+	 */
+	protected void configure( final TiledPrediction prediction ) {
+		configure( prediction, "" );
+	}
+
+	/**
+	 * Like {@link #configure(TiledPrediction)} for commands running several
+	 * predictions on the same input. {@code part} keeps their checkpoints
+	 * apart.
+	 */
+	protected void configure( final TiledPrediction prediction, final String part ) {
+		getPredictionOptions().configure(
+				prediction,
+				bridge,
+				getEngine(),
+				ModelCache.getKey( modelFileUrl, MODEL_TAG ),
+				() -> TileCheckpointStore.getInputIdentity(
+						input,
+						normalizeInput,
+						percentileBottom,
+						percentileTop,
+						min,
+						max,
+						clamp,
+						part ) );
+		prediction.setProfile( runProfile );
+	}
+
+	/**
+	 * The tiling and session parameters of this command.
+	 */
+	protected PredictionOptions getPredictionOptions() {
+		final PredictionOptions options = new PredictionOptions();
+		options.setBorderOverlap( borderOverlap );
+		options.setMemoryBudget( memoryBudget );
+		options.setAutotune( autotune, prefService );
+		options.setCheckpointDir( checkpointDir );
+		options.setConversionThreads( conversionThreads );
+		options.setConcurrentTiles( concurrentTiles );
+		options.setTilesPerRun( tilesPerRun );
+		options.setWarmUp( warmUp );
+		options.setSessionConfig(
+				new SessionConfig( intraOpThreads, interOpThreads, usePerSessionThreads, optimizerLevel ) );
+		return options;
 	}
 
 	public void showError( final String errorMsg ) {
@@ -440,7 +613,7 @@ public abstract class CSBDeepCommand< T extends RealType< T > > extends Percenti
 	}
 
 	private void freeResources() {
-		model.close();
+		releaseModel();
 		pool.shutdownNow();
 		progressWindow.getCancelBtn().removeActionListener( this );
 	}
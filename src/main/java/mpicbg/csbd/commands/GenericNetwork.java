@@ -35,7 +35,6 @@ import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -51,12 +50,12 @@ import net.imagej.ops.OpService;
 import net.imagej.tensorflow.TensorFlowService;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
 import net.imglib2.img.ImgView;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.Intervals;
 
 import org.scijava.Cancelable;
 import org.scijava.Initializable;
@@ -70,13 +69,19 @@ import org.scijava.plugin.Plugin;
 import org.scijava.prefs.PrefService;
 import org.scijava.ui.UIService;
 import org.scijava.widget.Button;
+import org.tensorflow.DataType;
 import org.tensorflow.SavedModelBundle;
 import org.tensorflow.TensorFlowException;
 import org.tensorflow.framework.MetaGraphDef;
 import org.tensorflow.framework.SignatureDef;
 
+import mpicbg.csbd.normalize.NormalizedView;
 import mpicbg.csbd.normalize.PercentileNormalizer;
 import mpicbg.csbd.tensorflow.DatasetTensorBridge;
+import mpicbg.csbd.tensorflow.InferenceEngine;
+import mpicbg.csbd.tensorflow.ModelCache;
+import mpicbg.csbd.tensorflow.RunProfile;
+import mpicbg.csbd.tensorflow.SessionConfig;
 import mpicbg.csbd.ui.CSBDeepProgress;
 import mpicbg.csbd.ui.MappingDialog;
 
@@ -126,6 +131,46 @@ public class GenericNetwork< T extends RealType< T > > extends PercentileNormali
 	@Parameter( label = "Overlap between tiles", min = "0", stepSize = "16" )
 	protected int overlap = 32;
 
+	@Parameter( label = "Overlap at image borders (-1 = same as between tiles)", min = "-1", stepSize = "16" )
+	protected int borderOverlap = -1;
+
+	@Parameter( label = "Memory budget per tile (MB, 0 = off)", min = "0", stepSize = "256" )
+	protected int memoryBudget = TilePlanner.DEFAULT_MEMORY_BUDGET_MB;
+
+	@Parameter( label = "Autotune tile size" )
+	protected boolean autotune = false;
+
+	@Parameter( label = "Checkpoint directory (resume interrupted runs)", style = "directory", required = false )
+	protected File checkpointDir;
+
+	@Parameter( label = "Threads for tile conversion (0 = all cores)", min = "0" )
+	protected int conversionThreads = 0;
+
+	@Parameter( label = "Tiles predicted concurrently", min = "1" )
+	protected int concurrentTiles = 1;
+
+	@Parameter( label = "Tiles stacked per run", min = "1" )
+	protected int tilesPerRun = 1;
+
+	@Parameter( label = "Warm up the model before the first tile" )
+	protected boolean warmUp = false;
+
+	@Parameter( label = "Profile the time per operation" )
+	protected boolean profile = false;
+
+	@Parameter( label = "TensorFlow intra-op threads (0 = default)", min = "0" )
+	protected int intraOpThreads = 0;
+
+	@Parameter( label = "TensorFlow inter-op threads (0 = default)", min = "0" )
+	protected int interOpThreads = 0;
+
+	@Parameter( label = "Per session thread pools" )
+	protected boolean usePerSessionThreads = false;
+
+	@Parameter( label = "Graph optimizer level", choices = {
+			SessionConfig.OPTIMIZER_DEFAULT, SessionConfig.OPTIMIZER_L1, SessionConfig.OPTIMIZER_L0 } )
+	protected String optimizerLevel = SessionConfig.OPTIMIZER_DEFAULT;
+
 	@Parameter
 	private TensorFlowService tensorFlowService;
 
@@ -148,7 +193,19 @@ public class GenericNetwork< T extends RealType< T > > extends PercentileNormali
 	protected List< Dataset > resultDatasets;
 
 	private SavedModelBundle model;
+	private ModelCache.Handle modelHandle;
 	private SignatureDef sig;
+
+	/**
+	 * The engine attached to the loaded model, see
+	 * {@link PredictionOptions#getEngine}.
+	 */
+	private InferenceEngine engine;
+
+	/**
+	 * The model file and its modification time {@link #sig} was read from.
+	 */
+	private String loadedModelKey;
 	private DatasetTensorBridge bridge;
 	private boolean processedDataset = false;
 	private boolean useTensorFlowGPU = true;
@@ -191,7 +248,12 @@ public class GenericNetwork< T extends RealType< T > > extends PercentileNormali
 
 		final FileLocation source = new FileLocation( modelFile );
 		try {
-			model = tensorFlowService.loadModel( source, source.getName(), MODEL_TAG );
+			final ModelCache.Handle handle = ModelCache.getInstance().acquire(
+					ModelCache.getKey( modelFile.getAbsolutePath(), MODEL_TAG ),
+					() -> tensorFlowService.loadModel( source, source.getName(), MODEL_TAG ) );
+			releaseModel();
+			modelHandle = handle;
+			model = handle.getModel();
 		} catch ( TensorFlowException | IOException e ) {
 			e.printStackTrace();
 			return false;
@@ -199,6 +261,20 @@ public class GenericNetwork< T extends RealType< T > > extends PercentileNormali
 		return true;
 	}
 
+	/**
+	 * Returns the model to the {@link ModelCache}, which closes it once it is
+	 * no longer used and needs the memory.
+	 */
+	private void releaseModel() {
+		engine = null;
+		if ( modelHandle != null ) {
+			modelHandle.close();
+			modelHandle = null;
+		}
+		model = null;
+		loadedModelKey = null;
+	}
+
 	/** Executed whenever the {@link #input} parameter changes. */
 	protected void processDataset() {
 
@@ -233,34 +309,39 @@ public class GenericNetwork< T extends RealType< T > > extends PercentileNormali
 
 		if ( input == null ) { return; }
 
-		if ( loadModel() ) {
+		// The signature only needs to be read again if the model file changed
+		final String modelKey = modelFile != null ? modelFile.getAbsolutePath() + " " + modelFile.lastModified() : null;
+		if ( model == null || modelKey == null || !modelKey.equals( loadedModelKey ) ) {
+			if ( !loadModel() ) { return; }
+			loadedModelKey = modelKey;
 
 			// Extract names from the model signature.
 			// The strings "input", "probabilities" and "patches" are meant to be
 			// in sync with the model exporter (export_saved_model()) in Python.
+			sig = null;
 			try {
 				sig = MetaGraphDef.parseFrom( model.metaGraphDef() ).getSignatureDefOrThrow(
 						DEFAULT_SERVING_SIGNATURE_DEF_KEY );
 			} catch ( final InvalidProtocolBufferException e ) {
 				e.printStackTrace();
 			}
-			if ( sig != null && sig.isInitialized() ) {
-				if ( sig.getInputsCount() > 0 ) {
-					inputNodeName = sig.getInputsMap().keySet().iterator().next();
-					if ( bridge != null ) {
-						bridge.setInputTensor( sig.getInputsOrThrow( inputNodeName ) );
-					}
-				}
-				if ( sig.getOutputsCount() > 0 ) {
-					outputNodeName = sig.getOutputsMap().keySet().iterator().next();
-					if ( bridge != null ) {
-						bridge.setOutputTensor( sig.getOutputsOrThrow( outputNodeName ) );
-					}
+		}
+		if ( sig != null && sig.isInitialized() ) {
+			if ( sig.getInputsCount() > 0 ) {
+				inputNodeName = sig.getInputsMap().keySet().iterator().next();
+				if ( bridge != null ) {
+					bridge.setInputTensor( sig.getInputsOrThrow( inputNodeName ) );
 				}
-				if ( bridge != null && !bridge.isMappingInitialized() ) {
-					bridge.setMappingDefaults();
+			}
+			if ( sig.getOutputsCount() > 0 ) {
+				outputNodeName = sig.getOutputsMap().keySet().iterator().next();
+				if ( bridge != null ) {
+					bridge.setOutputTensor( sig.getOutputsOrThrow( outputNodeName ) );
 				}
 			}
+			if ( bridge != null && !bridge.isMappingInitialized() ) {
+				bridge.setMappingDefaults();
+			}
 		}
 	}
 
@@ -301,8 +382,6 @@ public class GenericNetwork< T extends RealType< T > > extends PercentileNormali
 		progressWindow.setCurrentStepDone();
 		progressWindow.setStepStart( CSBDeepProgress.STEP_PREPROCRESSING );
 
-		progressWindow.addLog( "Preparing normalization.. " );
-
 		normalizeInput = _normalizeInput;
 		percentileBottom = _percentileBottom;
 		percentileTop = _percentileTop;
@@ -310,6 +389,25 @@ public class GenericNetwork< T extends RealType< T > > extends PercentileNormali
 		max = _max;
 		clamp = _clamp;
 
+		executeModel( normalizeInput() );
+
+		releaseModel();
+		pool.shutdown();
+	}
+
+	private RandomAccessibleInterval< FloatType > normalizeInput() {
+		if ( bridge.getInputDataType() == DataType.UINT8 ) {
+			// The model expects the raw 8 bit values
+			if ( normalizeInput ) {
+				progressWindow.addLog( "The model takes 8 bit input, the input is not normalized.." );
+			}
+			if ( bridge.isInputNarrowed() ) {
+				progressWindow.addError(
+						"The model takes 8 bit input, the input values are rounded and clamped to 0..255." );
+			}
+			return new NormalizedView<>( ( RandomAccessibleInterval ) input.getImgPlus(), null );
+		}
+		progressWindow.addLog( "Preparing normalization.. " );
 		prepareNormalization( ( IterableInterval ) input.getImgPlus() );
 
 		progressWindow.addLog(
@@ -319,43 +417,53 @@ public class GenericNetwork< T extends RealType< T > > extends PercentileNormali
 		progressWindow.addLog(
 				"Normalize (" + percentileBottom + " - " + percentileTop + " -> " + min + " - " + max + "] .. " );
 
-		final RandomAccessibleInterval< FloatType > normalizedInput = normalizeImage(
-				( RandomAccessibleInterval ) input.getImgPlus() );
-
-		executeModel( normalizedInput );
-
-		model.close();
-		pool.shutdown();
+		return normalizeView( ( RandomAccessibleInterval ) input.getImgPlus() );
 	}
 
 	private void executeModel( final RandomAccessibleInterval< FloatType > normalizedInput ) {
 
 		List< RandomAccessibleInterval< FloatType > > result = null;
+		final TiledPrediction prediction;
 		try {
-			result = pool
-					.submit(
-							new TiledPrediction( normalizedInput, bridge, model, progressWindow, nTiles, blockMultiple, overlap ) )
-					.get();
+			prediction =
+					new TiledPrediction( normalizedInput, bridge, model, progressWindow, nTiles, blockMultiple, overlap );
+			final PredictionOptions options = getPredictionOptions();
+			if ( engine == null ) {
+				engine = options.getEngine(
+						modelHandle,
+						bridge,
+						InferenceEngine.getOutputTensorInfos( bridge.getOutputTensorInfo(), sig ),
+						progressWindow );
+			}
+			options.configure(
+					prediction,
+					bridge,
+					engine,
+					ModelCache.getKey( modelFile.getAbsolutePath(), MODEL_TAG ),
+					() -> TileCheckpointStore.getInputIdentity(
+							input,
+							_normalizeInput,
+							_percentileBottom,
+							_percentileTop,
+							_min,
+							_max,
+							_clamp ) );
+			final RunProfile runProfile = profile ? new RunProfile() : null;
+			prediction.setProfile( runProfile );
+			result = prediction.predictAsync( pool ).get();
+			if ( runProfile != null ) {
+				PredictionOptions.reportProfile( runProfile, progressWindow );
+			}
 		} catch ( final ExecutionException exc ) {
 			exc.printStackTrace();
-
-			// We expect it to be an out of memory exception and
-			// try it again with more tiles.
-			nTiles *= 2;
-			// Check if the number of tiles is to large already
-			if ( Arrays.stream( Intervals.dimensionsAsLongArray( normalizedInput ) ).max().getAsLong() / nTiles < blockMultiple ) {
-				progressWindow.setCurrentStepFail();
-				return;
-			}
-			progressWindow.addError( "Out of memory exception occurred. Trying with " + nTiles + " tiles..." );
-			progressWindow.addRounds( 1 );
-			progressWindow.setNextRound();
-			executeModel( normalizedInput );
+			progressWindow.addError(
+					"Prediction failed. If the tiles do not fit into memory, lower the memory budget or increase the number of tiles." );
+			progressWindow.setCurrentStepFail();
 			return;
-
 		} catch ( final InterruptedException exc ) {
 			progressWindow.addError( "Process canceled." );
 			progressWindow.setCurrentStepFail();
+			return;
 		}
 		resultDatasets = new ArrayList<>();
 		if ( result != null ) {
@@ -365,6 +473,16 @@ public class GenericNetwork< T extends RealType< T > > extends PercentileNormali
 				resultDatasets.add( wrapIntoDataset( OUTPUT_NAME + i, result.get( i ) ) );
 			}
 		}
+		// The additional outputs of a multi-head model
+		final List< Img< FloatType > > heads = prediction.getHeadOutputs();
+		for ( int i = 0; i < heads.size(); i++ ) {
+			if ( heads.get( i ) == null ) {
+				continue;
+			}
+			final String name = engine.getOutputTensorInfos().get( i + 1 ).getName();
+			progressWindow.addLog( "Displaying " + name + " image.." );
+			resultDatasets.add( wrapIntoDataset( name, heads.get( i ) ) );
+		}
 		if ( !resultDatasets.isEmpty() ) {
 			progressWindow.addLog( "All done!" );
 			progressWindow.setCurrentStepDone();
@@ -373,6 +491,24 @@ public class GenericNetwork< T extends RealType< T > > extends PercentileNormali
 		}
 	}
 
+	/**
+	 * The tiling and session parameters of this command.
+	 */
+	private PredictionOptions getPredictionOptions() {
+		final PredictionOptions options = new PredictionOptions();
+		options.setBorderOverlap( borderOverlap );
+		options.setMemoryBudget( memoryBudget );
+		options.setAutotune( autotune, prefService );
+		options.setCheckpointDir( checkpointDir );
+		options.setConversionThreads( conversionThreads );
+		options.setConcurrentTiles( concurrentTiles );
+		options.setTilesPerRun( tilesPerRun );
+		options.setWarmUp( warmUp );
+		options.setSessionConfig(
+				new SessionConfig( intraOpThreads, interOpThreads, usePerSessionThreads, optimizerLevel ) );
+		return options;
+	}
+
 	private void savePreferences() {
 		prefService.put( modelFileKey, modelFile.getAbsolutePath() );
 	}
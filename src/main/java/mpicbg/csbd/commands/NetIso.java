@@ -50,7 +50,6 @@ import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
-import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.realtransform.AffineGet;
@@ -233,29 +232,21 @@ public class NetIso< T extends RealType< T > > extends CSBDeepCommand< T > imple
 					new BatchedTiledPrediction( rotated1, bridge, model, progressWindow, nTiles, 4, overlap, batchSize );
 			batchedPrediction0.setDropSingletonDims( false );
 			batchedPrediction1.setDropSingletonDims( false );
+			configure( batchedPrediction0, "rotation 0" );
+			configure( batchedPrediction1, "rotation 1" );
 
-			result0.addAll( pool.submit( batchedPrediction0 ).get() );
+			result0.addAll( batchedPrediction0.predictAsync( pool ).get() );
 
 			progressWindow.setNextRound();
-			result1.addAll( pool.submit( batchedPrediction1 ).get() );
+			result1.addAll( batchedPrediction1.predictAsync( pool ).get() );
 
 		} catch ( RejectedExecutionException | InterruptedException exc ) {
 			return;
 		} catch ( final ExecutionException exc ) {
 			exc.printStackTrace();
-
-			// We expect it to be an out of memory exception and
-			// try it again with a smaller batch size.
-			batchSize /= 2;
-			// Check if the batch size is at 1 already
-			if ( batchSize < 1 ) {
-				progressWindow.setCurrentStepFail();
-				return;
-			}
-			progressWindow.addError( "Out of memory exception occurred. Trying with batch size: " + batchSize );
-			progressWindow.addRounds( 1 );
-			progressWindow.setNextRound();
-			runBatches( rotated0, rotated1, result0, result1 );
+			progressWindow.addError(
+					"Prediction failed. If the batches do not fit into memory, lower the memory budget or the batch size." );
+			progressWindow.setCurrentStepFail();
 			return;
 		}
 
@@ -269,10 +260,10 @@ public class NetIso< T extends RealType< T > > extends CSBDeepCommand< T > imple
 		final IntervalView< T > channel1 = Views.hyperSlice( in, dimChannel, 1 );
 
 		prepareNormalization( channel0 );
-		final Img< FloatType > normalizedChannel0 = normalizeImage( channel0 );
+		final RandomAccessibleInterval< FloatType > normalizedChannel0 = normalizeView( channel0 );
 
 		prepareNormalization( channel1 );
-		final Img< FloatType > normalizedChannel1 = normalizeImage( channel1 );
+		final RandomAccessibleInterval< FloatType > normalizedChannel1 = normalizeView( channel1 );
 
 		return Views.permute( Views.stack( normalizedChannel0, normalizedChannel1 ), in.numDimensions() - 1, dimChannel );
 	}
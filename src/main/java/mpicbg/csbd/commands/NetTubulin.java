@@ -167,25 +167,16 @@ public class NetTubulin< T extends RealType< T > > extends CSBDeepCommand< T >
 				tiledPrediction = new TiledPrediction( rotated, bridge, model, progressWindow, nTiles, BLOCK_MULTIPLE, overlap );
 			}
 			tiledPrediction.setDropSingletonDims( false );
-			result.addAll( pool.submit( tiledPrediction ).get() );
+			configure( tiledPrediction );
+			result.addAll( tiledPrediction.predictAsync( pool ).get() );
 
 		} catch ( RejectedExecutionException | InterruptedException exc ) {
 			return;
 		} catch ( final ExecutionException exc ) {
 			exc.printStackTrace();
-
-			// We expect it to be an out of memory exception and
-			// try it again with a smaller batch size.
-			batchSize /= 2;
-			// Check if the batch size is at 1 already
-			if ( batchSize < 1 ) {
-				progressWindow.setCurrentStepFail();
-				return;
-			}
-			progressWindow.addError( "Out of memory exception occurred. Trying with batch size: " + batchSize );
-			progressWindow.addRounds( 1 );
-			progressWindow.setNextRound();
-			runBatches( rotated, result, useBatch );
+			progressWindow.addError(
+					"Prediction failed. If the batches do not fit into memory, lower the memory budget or the batch size." );
+			progressWindow.setCurrentStepFail();
 			return;
 		}
 
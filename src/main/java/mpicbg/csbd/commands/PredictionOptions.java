@@ -0,0 +1,210 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.commands;
+
+import java.io.File;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.scijava.prefs.PrefService;
+import org.tensorflow.framework.TensorInfo;
+
+import mpicbg.csbd.tensorflow.DatasetTensorBridge;
+import mpicbg.csbd.tensorflow.InferenceEngine;
+import mpicbg.csbd.tensorflow.ModelCache;
+import mpicbg.csbd.tensorflow.RunProfile;
+import mpicbg.csbd.tensorflow.SessionConfig;
+import mpicbg.csbd.ui.CSBDeepProgress;
+
+/**
+ * The tiling and session options the prediction commands share. The commands
+ * copy their parameters into the options and apply them to each prediction
+ * with {@link #configure(TiledPrediction, DatasetTensorBridge, InferenceEngine, String, Supplier)}.
+ */
+public class PredictionOptions {
+
+	/**
+	 * Number of operations listed in the profile.
+	 */
+	private static final int PROFILE_REPORT_OPS = 15;
+
+	private int borderOverlap = -1;
+	private int memoryBudget = TilePlanner.DEFAULT_MEMORY_BUDGET_MB;
+	private boolean autotune = false;
+	private File checkpointDir;
+	private int conversionThreads = 0;
+	private int concurrentTiles = 1;
+	private int tilesPerRun = 1;
+	private boolean warmUp = false;
+	private SessionConfig sessionConfig = new SessionConfig();
+	private PrefService prefService;
+
+	/**
+	 * Applies the options to a prediction.
+	 *
+	 * @param engine
+	 *            the engine shared by the predictions of a command, or null to
+	 *            let the prediction create its own engine with the session
+	 *            options
+	 * @param modelKey
+	 *            identifies the model for tuned tile sizes and checkpoints, see
+	 *            {@link mpicbg.csbd.tensorflow.ModelCache#getKey(String, String)}
+	 * @param inputIdentity
+	 *            identifies the input for checkpoints, see
+	 *            {@link TileCheckpointStore#getInputIdentity}. Only called if
+	 *            checkpoints are enabled.
+	 */
+	public void configure(
+			final TiledPrediction prediction,
+			final DatasetTensorBridge bridge,
+			final InferenceEngine engine,
+			final String modelKey,
+			final Supplier< String > inputIdentity ) {
+		prediction.setTilePlanner( memoryBudget > 0 ? new TilePlanner( bridge, memoryBudget ) : null );
+		prediction.setBorderOverlap( borderOverlap );
+		prediction.setConversionThreads( conversionThreads );
+		if ( engine != null ) {
+			prediction.setEngine( engine );
+		} else {
+			prediction.setConcurrentTiles( concurrentTiles );
+			prediction.setSessionConfig( sessionConfig );
+		}
+		prediction.setTilesPerRun( tilesPerRun );
+		prediction.setWarmUp( warmUp );
+		if ( autotune && prefService != null ) {
+			prediction.setAutotuner( new TilingAutotuner( prefService, modelKey ) );
+		}
+		if ( checkpointDir != null ) {
+			prediction.setCheckpointStore( new TileCheckpointStore( checkpointDir, modelKey, inputIdentity.get() ) );
+		}
+	}
+
+	/**
+	 * The engine running a cached model with the session options. It is
+	 * attached to the model in the {@link ModelCache}, so later runs with the
+	 * same options reuse its sessions, and closed together with the model.
+	 * The copies of the variables in its sessions count towards the memory
+	 * cap of the cache.
+	 *
+	 * @param outputs
+	 *            the outputs fetched by the engine, see
+	 *            {@link InferenceEngine#getOutputTensorInfos(TensorInfo, org.tensorflow.framework.SignatureDef)}
+	 */
+	public InferenceEngine getEngine(
+			final ModelCache.Handle model,
+			final DatasetTensorBridge bridge,
+			final List< TensorInfo > outputs,
+			final CSBDeepProgress progressWindow ) {
+		final StringBuilder key = new StringBuilder( "engine " ).append( bridge.getInputTensorInfo().getName() );
+		for ( final TensorInfo output : outputs ) {
+			key.append( " " ).append( output.getName() );
+		}
+		key.append( ", " ).append( concurrentTiles ).append( " sessions, " ).append( sessionConfig );
+		final int sessions = concurrentTiles;
+		final SessionConfig config = sessionConfig;
+		final InferenceEngine engine = model.getAttachment( key.toString(), () -> {
+			if ( sessions > 1 ) {
+				progressWindow.addLog( "Preparing " + sessions + " sessions.." );
+			}
+			return new InferenceEngine( model.getModel(), bridge.getInputTensorInfo(), outputs, sessions, config );
+		}, created -> created.getCreatedSessionCount() * model.getVariableBytes() );
+		if ( engine.getSessionError() != null ) {
+			progressWindow.addError(
+					"Can not create the configured sessions, using the session of the model: " + engine.getSessionError() );
+		}
+		return engine;
+	}
+
+	/**
+	 * Logs the most expensive operations of a profile, see
+	 * {@link TiledPrediction#setProfile(RunProfile)}.
+	 */
+	public static void reportProfile( final RunProfile profile, final CSBDeepProgress progressWindow ) {
+		for ( final String line : profile.getReport( PROFILE_REPORT_OPS ) ) {
+			progressWindow.addLog( line );
+		}
+	}
+
+	/**
+	 * Set the overlap at the image borders, see
+	 * {@link TiledPrediction#setBorderOverlap(int)}.
+	 */
+	public void setBorderOverlap( final int borderOverlap ) {
+		this.borderOverlap = borderOverlap;
+	}
+
+	/**
+	 * Set the memory budget of the {@link TilePlanner} in MB, 0 turns the
+	 * planner off.
+	 */
+	public void setMemoryBudget( final int memoryBudget ) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Set if the tile size is tuned, see {@link TilingAutotuner}. The tuned
+	 * sizes are stored with the {@link PrefService}.
+	 */
+	public void setAutotune( final boolean autotune, final PrefService prefService ) {
+		this.autotune = autotune;
+		this.prefService = prefService;
+	}
+
+	/**
+	 * Set the directory finished tiles are stored in, null turns checkpoints
+	 * off.
+	 */
+	public void setCheckpointDir( final File checkpointDir ) {
+		this.checkpointDir = checkpointDir;
+	}
+
+	/**
+	 * Set the number of threads converting tiles, 0 uses all cores.
+	 */
+	public void setConversionThreads( final int conversionThreads ) {
+		this.conversionThreads = conversionThreads;
+	}
+
+	public void setConcurrentTiles( final int concurrentTiles ) {
+		this.concurrentTiles = concurrentTiles;
+	}
+
+	public void setTilesPerRun( final int tilesPerRun ) {
+		this.tilesPerRun = tilesPerRun;
+	}
+
+	public void setWarmUp( final boolean warmUp ) {
+		this.warmUp = warmUp;
+	}
+
+	public void setSessionConfig( final SessionConfig sessionConfig ) {
+		this.sessionConfig = sessionConfig;
+	}
+
+}
@@ -0,0 +1,229 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.commands;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import net.imagej.Dataset;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Stores the results of finished tiles on disk so that an interrupted
+ * prediction can be resumed. The tiles of one prediction are kept in a
+ * directory named after a hash of the model, the identity of the input and
+ * the tiling plan, so a changed plan never picks up stale tiles. The
+ * additional outputs of a multi-head model are stored as heads of the tile.
+ */
+public class TileCheckpointStore {
+
+	private static final String SUFFIX = ".tile";
+
+	/** Number of runs of values hashed by {@link #sampleDigest}. */
+	private static final int SAMPLED_BLOCKS = 64;
+
+	/** Number of consecutive values in one sampled run. */
+	private static final int BLOCK_LENGTH = 256;
+
+	private final File baseDir;
+	private final String modelName;
+	private final String inputIdentity;
+	private File dir;
+
+	public TileCheckpointStore( final File baseDir, final String modelName, final String inputIdentity ) {
+		this.baseDir = baseDir;
+		this.modelName = modelName;
+		this.inputIdentity = inputIdentity;
+	}
+
+	/**
+	 * Selects the checkpoint directory for the given tiling plan and creates
+	 * it if needed.
+	 */
+	public void open( final String plan ) throws IOException {
+		dir = new File( baseDir, hash( modelName + "\n" + inputIdentity + "\n" + plan ) );
+		if ( !dir.isDirectory() && !dir.mkdirs() ) { throw new IOException( "Can not create checkpoint directory " + dir ); }
+	}
+
+	public boolean contains( final int index ) {
+		return contains( index, 0 );
+	}
+
+	public boolean contains( final int index, final int head ) {
+		return getFile( index, head ).isFile();
+	}
+
+	public void save( final int index, final RandomAccessibleInterval< FloatType > tile ) throws IOException {
+		save( index, 0, tile );
+	}
+
+	/**
+	 * Writes the tile to a temporary file first and moves it into place
+	 * afterwards, so a crash never leaves a partial tile behind.
+	 */
+	public void save( final int index, final int head, final RandomAccessibleInterval< FloatType > tile )
+			throws IOException {
+		final File file = getFile( index, head );
+		final File tmp = new File( dir, file.getName() + ".tmp" );
+		try (DataOutputStream out =
+				new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ), 1 << 16 ) )) {
+			out.writeInt( tile.numDimensions() );
+			for ( int d = 0; d < tile.numDimensions(); d++ ) {
+				out.writeLong( tile.dimension( d ) );
+			}
+			for ( final FloatType t : Views.flatIterable( tile ) ) {
+				out.writeFloat( t.get() );
+			}
+		}
+		Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	public Img< FloatType > load( final int index ) throws IOException {
+		return load( index, 0 );
+	}
+
+	public Img< FloatType > load( final int index, final int head ) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream( new FileInputStream( getFile( index, head ) ), 1 << 16 ) )) {
+			final long[] dims = new long[ in.readInt() ];
+			for ( int d = 0; d < dims.length; d++ ) {
+				dims[ d ] = in.readLong();
+			}
+			final Img< FloatType > tile = ArrayImgs.floats( dims );
+			final Cursor< FloatType > cursor = tile.cursor();
+			while ( cursor.hasNext() ) {
+				cursor.next().set( in.readFloat() );
+			}
+			return tile;
+		}
+	}
+
+	/**
+	 * Deletes all stored tiles of the current plan.
+	 */
+	public void clear() {
+		if ( dir == null ) { return; }
+		final File[] files = dir.listFiles();
+		if ( files != null ) {
+			for ( final File file : files ) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Identifies an input image by its source, the modification time of its
+	 * file, its name, dimensions, pixel type and a digest of sampled values,
+	 * plus the given settings which influence the values passed to the model,
+	 * e.g. the normalization. The digest only reads a few thousand values, so
+	 * an unsaved edit of the image is only noticed if it changes one of them.
+	 */
+	public static String getInputIdentity( final Dataset input, final Object... settings ) {
+		final String source = input.getSource();
+		final File file = source != null ? new File( source ) : null;
+		final long modified = file != null && file.isFile() ? file.lastModified() : 0;
+		return source + " " + modified + " " + input.getName() + " " + Arrays.toString(
+				Intervals.dimensionsAsLongArray( input ) ) + " " + input.firstElement().getClass().getSimpleName() +
+				" " + sampleDigest( input ) + " " + Arrays.toString( settings );
+	}
+
+	/**
+	 * Hash of {@link #SAMPLED_BLOCKS} runs of {@link #BLOCK_LENGTH} values,
+	 * spread evenly over the image in flat iteration order.
+	 */
+	static String sampleDigest( final RandomAccessibleInterval< ? extends RealType< ? > > image ) {
+		final long size = Intervals.numElements( image );
+		final long[] dims = Intervals.dimensionsAsLongArray( image );
+		final long[] min = Intervals.minAsLongArray( image );
+		final long[] position = new long[ dims.length ];
+		final RandomAccess< ? extends RealType< ? > > ra = image.randomAccess();
+		final MessageDigest digest = newDigest();
+		final ByteBuffer buffer = ByteBuffer.allocate( BLOCK_LENGTH * Double.BYTES );
+		final long step = Math.max( BLOCK_LENGTH, size / SAMPLED_BLOCKS );
+		for ( long start = 0; start < size; start += step ) {
+			buffer.clear();
+			for ( long i = start; i < Math.min( size, start + BLOCK_LENGTH ); i++ ) {
+				IntervalIndexer.indexToPositionWithOffset( i, dims, min, position );
+				ra.setPosition( position );
+				buffer.putDouble( ra.get().getRealDouble() );
+			}
+			digest.update( buffer.array(), 0, buffer.position() );
+		}
+		return toHex( digest.digest() );
+	}
+
+	private File getFile( final int index, final int head ) {
+		return new File( dir, ( head > 0 ? index + "-" + head : index ) + SUFFIX );
+	}
+
+	private static String hash( final String text ) {
+		return toHex( newDigest().digest( text.getBytes( StandardCharsets.UTF_8 ) ) );
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance( "SHA-1" );
+		} catch ( final NoSuchAlgorithmException exc ) {
+			throw new IllegalStateException( exc );
+		}
+	}
+
+	private static String toHex( final byte[] digest ) {
+		final StringBuilder sb = new StringBuilder();
+		for ( final byte b : digest ) {
+			sb.append( String.format( "%02x", b ) );
+		}
+		return sb.toString();
+	}
+
+}
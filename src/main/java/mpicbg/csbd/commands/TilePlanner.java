@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.commands;
+
+import org.tensorflow.framework.TensorInfo;
+import org.tensorflow.framework.TensorShapeProto;
+
+import mpicbg.csbd.tensorflow.DatasetTensorBridge;
+import mpicbg.csbd.tensorflow.TensorBufferPool;
+
+/**
+ * Chooses the number of tiles and the batch size of a prediction before it is
+ * run. The memory needed by one tile is estimated from the input and output
+ * {@link TensorInfo} of the model and compared against a memory budget.
+ */
+public class TilePlanner {
+
+	public static final int DEFAULT_MEMORY_BUDGET_MB = 1024;
+
+	/**
+	 * Rough ratio between the memory the network needs for its intermediate
+	 * activations and the size of the input tile.
+	 */
+	public static final int DEFAULT_ACTIVATION_FACTOR = 16;
+
+	private final DatasetTensorBridge bridge;
+	private final long memoryBudget;
+	private int activationFactor = DEFAULT_ACTIVATION_FACTOR;
+
+	public TilePlanner( final DatasetTensorBridge bridge, final int memoryBudgetMB ) {
+		this.bridge = bridge;
+		this.memoryBudget = memoryBudgetMB * 1024L * 1024L;
+	}
+
+	public void setActivationFactor( final int activationFactor ) {
+		this.activationFactor = activationFactor;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Estimates the number of bytes needed to run the model on one tile.
+	 *
+	 * @param tileDims
+	 *            dimensions of the tile in image space, including the padding
+	 */
+	public long estimateTileBytes( final long[] tileDims ) {
+		long elements = 1;
+		for ( final long dim : tileDims ) {
+			elements *= dim;
+		}
+		final TensorInfo in = bridge.getInputTensorInfo();
+		final TensorInfo out = bridge.getOutputTensorInfo();
+		final long channelsIn = getChannels( in );
+		final long channelsOut = out != null ? getChannels( out ) : channelsIn;
+		final long inBytes = elements * TensorBufferPool.getBytesPerElement( in.getDtype() );
+		final long outBytes = elements / channelsIn * channelsOut * ( out != null ? TensorBufferPool.getBytesPerElement(
+				out.getDtype() ) : 4 );
+		return inBytes + outBytes + elements * 4 * activationFactor;
+	}
+
+	/**
+	 * Finds the smallest number of tiles (but at least {@code minTiles}) for
+	 * which one tile fits into the memory budget.
+	 *
+	 * @param dims
+	 *            dimensions of the input image
+	 * @param tileable
+	 *            which dimensions can be divided into tiles
+	 * @return the number of tiles to use
+	 */
+	public int planTiles(
+			final long[] dims,
+			final boolean[] tileable,
+			final int minTiles,
+			final int blockMultiple,
+			final int overlap ) {
+		int nTiles = Math.max( 1, minTiles );
+		while ( true ) {
+			final long[] grid = TiledPrediction.computeTileGrid( dims, tileable, nTiles, blockMultiple );
+			long gridSize = 1;
+			for ( final long tiles : grid ) {
+				gridSize *= tiles;
+			}
+			// The image can not be divided any further
+			if ( gridSize < nTiles ) { return Math.max( minTiles, nTiles - 1 ); }
+			if ( estimateTileBytes( getTileDims( dims, tileable, grid, blockMultiple, overlap ) ) <= memoryBudget ) { return nTiles; }
+			nTiles++;
+		}
+	}
+
+	/**
+	 * Finds the largest batch size up to {@code maxBatchSize} for which a batch
+	 * of tiles fits into the memory budget.
+	 *
+	 * @param tileDims
+	 *            dimensions of one tile in image space with the batch dimension
+	 *            set to 1
+	 */
+	public int planBatchSize( final long[] tileDims, final int maxBatchSize ) {
+		final long tileBytes = estimateTileBytes( tileDims );
+		final long batchSize = memoryBudget / Math.max( 1, tileBytes );
+		return ( int ) Math.max( 1, Math.min( maxBatchSize, batchSize ) );
+	}
+
+	protected static long[] getTileDims(
+			final long[] dims,
+			final boolean[] tileable,
+			final long[] grid,
+			final int blockMultiple,
+			final int overlap ) {
+		final long[] tileDims = new long[ dims.length ];
+		for ( int d = 0; d < dims.length; d++ ) {
+			if ( tileable[ d ] ) {
+				final double blockwidthIdeal = dims[ d ] / ( double ) grid[ d ];
+				tileDims[ d ] = ( long ) ( Math.ceil( blockwidthIdeal / blockMultiple ) * blockMultiple );
+				// Only split dimensions get padded
+				if ( grid[ d ] > 1 ) {
+					tileDims[ d ] += 2 * overlap;
+				}
+			} else {
+				tileDims[ d ] = dims[ d ];
+			}
+		}
+		return tileDims;
+	}
+
+	private static long getChannels( final TensorInfo info ) {
+		final TensorShapeProto shape = info.getTensorShape();
+		if ( shape.getDimCount() == 0 ) { return 1; }
+		final long size = shape.getDim( shape.getDimCount() - 1 ).getSize();
+		return size > 0 ? size : 1;
+	}
+
+}
@@ -28,33 +28,52 @@
  */
 package mpicbg.csbd.commands;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
 import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
+import org.tensorflow.DataType;
 import org.tensorflow.SavedModelBundle;
-import org.tensorflow.Tensor;
+import org.tensorflow.framework.TensorShapeProto;
 
-import mpicbg.csbd.imglib2.ArrangedView;
-import mpicbg.csbd.imglib2.CombinedView;
+import mpicbg.csbd.backend.InferenceBackend;
 import mpicbg.csbd.imglib2.TiledView;
 import mpicbg.csbd.tensorflow.DatasetConverter;
 import mpicbg.csbd.tensorflow.DatasetTensorBridge;
-import mpicbg.csbd.tensorflow.TensorFlowRunner;
+import mpicbg.csbd.tensorflow.InferenceEngine;
+import mpicbg.csbd.tensorflow.RunProfile;
+import mpicbg.csbd.tensorflow.SessionConfig;
+import mpicbg.csbd.tensorflow.TensorBufferPool;
 import mpicbg.csbd.ui.CSBDeepProgress;
 
 public class TiledPrediction
@@ -68,12 +87,47 @@ public class TiledPrediction
 	protected int nTiles;
 	protected int blockMultiple;
 	protected int overlap;
-	protected int largestDim;
-	protected long largestSize;
+	protected long[] tilesPerDim;
+	protected long[] requestedTilesPerDim;
+	protected long[] tileSize;
 	protected long[] padding;
+	protected long[] borderPadding;
+
+	/**
+	 * Overlap added at the image borders. A negative value means the same as
+	 * {@link #overlap}.
+	 */
+	protected int borderOverlap = -1;
 
 	protected int[] mappingIn, mappingOut;
 
+	/**
+	 * The stitched result. Finished tiles are written into it directly.
+	 */
+	protected Img< FloatType > output;
+
+	/**
+	 * The stitched results of the additional outputs of a multi-head model,
+	 * see {@link #getHeadOutputs()}.
+	 */
+	protected List< Img< FloatType > > headOutputs = new ArrayList<>();
+
+	protected TilePlanner tilePlanner;
+
+	protected TilingAutotuner autotuner;
+	protected TileCheckpointStore checkpointStore;
+	protected final TensorBufferPool bufferPool = new TensorBufferPool();
+	protected int concurrentTiles = 1;
+	protected int tilesPerRun = 1;
+	protected int conversionThreads = 0;
+	protected SessionConfig sessionConfig = new SessionConfig();
+	protected InferenceEngine engine;
+	protected InferenceBackend backend;
+	private InferenceBackend ownBackend;
+	protected RunProfile profile;
+	protected boolean warmUp = false;
+	protected final List< TileListener > tileListeners = new CopyOnWriteArrayList<>();
+
 	protected final CSBDeepProgress progressWindow;
 
 	protected Integer doneTileCount;
@@ -87,6 +141,11 @@ public class TiledPrediction
 
 	protected ExecutorService pool;
 
+	/**
+	 * Number of tiles which can wait between two stages of the pipeline.
+	 */
+	protected static final int PIPELINE_CAPACITY = 2;
+
 	public TiledPrediction(
 			final RandomAccessibleInterval< FloatType > input,
 			final DatasetTensorBridge bridge,
@@ -116,9 +175,8 @@ public class TiledPrediction
 			progressWindow.addLog( "Image dimensions: " + Arrays.toString( dims ) );
 			progressWindow.addLog( "Calculate mapping between image and tensor.." );
 
-			largestDim = getLargestDim( input, bridge );
-			largestSize = input.dimension( largestDim );
-
+			// The mapping depends on the axes of this dataset, so it is not
+			// shared with other predictions of the same engine
 			//get mapping for input tensor (index is input image dimension index, value is tensor index)
 			mappingIn = new int[ bridge.getInputTensorInfo().getTensorShape().getDimCount() ];
 			//get mapping for input tensor (index is input image dimension index, value is tensor index)
@@ -128,56 +186,94 @@ public class TiledPrediction
 			progressWindow.addLog( "mappingIn: " + Arrays.toString( mappingIn ) );
 			progressWindow.addLog( "mappingOut: " + Arrays.toString( mappingOut ) );
 
-			progressWindow.addLog( "Divide image into " + nTiles + " tile(s).." );
-
 			padding = new long[ input.numDimensions() ];
+			borderPadding = new long[ input.numDimensions() ];
 
-			progressWindow.setProgressBarMax( nTiles );
+			// Distribute the tiles over all dimensions which can be tiled
+			final boolean[] tileable = new boolean[ input.numDimensions() ];
+			for ( int d = 0; d < tileable.length; d++ ) {
+				tileable[ d ] = isTileable( d );
+			}
+			if ( autotuner != null && requestedTilesPerDim == null ) {
+				progressWindow.addLog( "Find the fastest tile size.." );
+				final long tunedSize = autotuner.getTileSize(
+						getBackend(),
+						mappingIn,
+						dims,
+						tileable,
+						blockMultiple,
+						overlap,
+						tilePlanner,
+						progressWindow );
+				if ( tunedSize > 0 ) {
+					progressWindow.addLog( "Using tuned tile size " + tunedSize + ".." );
+					requestedTilesPerDim = new long[ dims.length ];
+					for ( int d = 0; d < dims.length; d++ ) {
+						requestedTilesPerDim[ d ] = tileable[ d ] ? ( long ) Math.ceil( dims[ d ] / ( double ) tunedSize ) : 1;
+					}
+				}
+			}
+			if ( tilePlanner != null && requestedTilesPerDim == null ) {
+				nTiles = tilePlanner.planTiles( getPlanningDims(), tileable, nTiles, blockMultiple, overlap );
+				progressWindow.addLog(
+						"Memory budget of " + tilePlanner.getMemoryBudget() / ( 1024 * 1024 ) + " MB requires " + nTiles + " tile(s).." );
+			}
+			tilesPerDim = requestedTilesPerDim != null ? requestedTilesPerDim.clone() : computeTileGrid(
+					dims,
+					tileable,
+					nTiles,
+					blockMultiple );
+
+			// Calculate the blocksize to use and expand the image to fit it
+			tileSize = new long[ input.numDimensions() ];
+			expandedInput = input;
+			for ( int d = 0; d < tileSize.length; d++ ) {
+				if ( tileable[ d ] ) {
+					final double blockwidthIdeal = dims[ d ] / ( double ) tilesPerDim[ d ];
+					tileSize[ d ] = ( long ) ( Math.ceil( blockwidthIdeal / blockMultiple ) * blockMultiple );
+					tilesPerDim[ d ] = ( long ) Math.ceil( ( double ) dims[ d ] / tileSize[ d ] );
+					expandedInput = expandDimToSize( expandedInput, d, tileSize[ d ] * tilesPerDim[ d ] );
+					// Put the padding per dimension in a array, dimensions
+					// which are not split need no overlap
+					if ( tilesPerDim[ d ] > 1 ) {
+						padding[ d ] = overlap;
+						borderPadding[ d ] = getBorderPadding();
+					}
+				} else {
+					// Expand other dimensions to fit blockMultiple
+					if ( isExpandable( d ) ) {
+						expandedInput = expandDimToSize(
+								expandedInput,
+								d,
+								( long ) Math.ceil(
+										expandedInput.dimension( d ) / ( double ) blockMultiple ) * blockMultiple );
+					}
+					tilesPerDim[ d ] = 1;
+					tileSize[ d ] = expandedInput.dimension( d );
+				}
+			}
 
-			// Calculate the blocksize to use
-			final double blockwidthIdeal = largestSize / ( double ) nTiles;
-			final long blockwidth =
-					( long ) ( Math.ceil( blockwidthIdeal / blockMultiple ) * blockMultiple );
+			nTiles = 1;
+			for ( final long tiles : tilesPerDim ) {
+				nTiles *= tiles;
+			}
 
-			nTiles = ( int ) Math.ceil( ( float ) largestSize / blockwidth );
+			progressWindow.addLog(
+					"Divide image into " + nTiles + " tile(s) " + Arrays.toString( tilesPerDim ) + ".." );
+			progressWindow.setProgressBarMax( nTiles );
 
-			System.out.println( "blockwidthIdeal: " + blockwidthIdeal );
-			System.out.println( "blockwidth: " + blockwidth );
 			System.out.println( "blockMultiple: " + blockMultiple );
 			System.out.println( "nTiles: " + nTiles );
 
-			// Expand the image to fit the blocksize
-			expandedInput = expandDimToSize( input, largestDim, blockwidth * nTiles );
-
-			// Expand other dimensions to fit blockMultiple
-			for ( int i = 0; i < expandedInput.numDimensions(); i++ ) {
-//				if ( bridge.getDimTypeByDatasetDim( i ).isXY() ) {
-				expandedInput = i == largestDim ? expandedInput : expandDimToSize(
-						expandedInput,
-						i,
-						( long ) Math.ceil(
-								expandedInput.dimension(
-										i ) / ( double ) blockMultiple ) * blockMultiple );
-//				}
-			}
-
 			final long[] imdims = new long[ expandedInput.numDimensions() ];
 			expandedInput.dimensions( imdims );
 			System.out.println( "imdims: " + Arrays.toString( imdims ) );
-//				printDim( "After expand", im );
-
-			// Set the tile size
-			final long[] tileSize = Intervals.dimensionsAsLongArray( expandedInput );
-			tileSize[ largestDim ] = blockwidth;
-
-			// Put the padding per dimension in a array
-
-			padding[ largestDim ] = overlap;
 
 			System.out.println( "tilesize: " + Arrays.toString( tileSize ) );
 
 			// Create the tiled view
-			final TiledView< FloatType > tiledView = new TiledView<>( expandedInput, tileSize, padding );
+			final TiledView< FloatType > tiledView =
+					new TiledView<>( expandedInput, tileSize.clone(), padding, borderPadding );
 
 			progressWindow.setCurrentStepDone();
 
@@ -189,116 +285,697 @@ public class TiledPrediction
 
 	}
 
-	public List< RandomAccessibleInterval< FloatType > > runModel( final TiledView< FloatType > tiledView ) throws ExecutionException {
+	/**
+	 * The padding at the image border of a dimension divided into several
+	 * tiles. It is at least {@link #borderOverlap} and chosen such that the
+	 * padded tiles stay a multiple of {@link #blockMultiple}.
+	 */
+	protected long getBorderPadding() {
+		if ( borderOverlap < 0 ) { return overlap; }
+		long border = borderOverlap;
+		while ( ( overlap + border ) % blockMultiple != 0 ) {
+			border++;
+		}
+		return border;
+	}
+
+	/**
+	 * Whether the input can be divided into tiles along dimension {@code d}.
+	 * These are the spatial dimensions X and Y and also Z as long as the
+	 * network neither uses it as batch dimension nor reduces it.
+	 */
+	protected boolean isTileable( final int d ) {
+		final AxisType type = bridge.getDimTypeByDatasetDim( d );
+		if ( type == null ) { return false; }
+		if ( type.isXY() ) { return true; }
+		return type == Axes.Z && bridge.getTfIndexByDimType( Axes.Z ) > 0;
+	}
+
+	/**
+	 * The dimensions the {@link TilePlanner} uses to estimate the size of a
+	 * tile.
+	 */
+	protected long[] getPlanningDims() {
+		final long[] dims = new long[ input.numDimensions() ];
+		input.dimensions( dims );
+		return dims;
+	}
+
+	/**
+	 * Whether dimension {@code d} gets expanded to a multiple of
+	 * {@link #blockMultiple} if it is not tiled.
+	 */
+	protected boolean isExpandable( final int d ) {
+		return true;
+	}
+
+	/**
+	 * Distributes {@code nTiles} tiles over the tileable dimensions. Each step
+	 * splits the dimension with the largest remaining tile extent as long as
+	 * the resulting tiles are not smaller than {@code blockMultiple}.
+	 *
+	 * @return the number of tiles per dimension
+	 */
+	public static long[] computeTileGrid(
+			final long[] dims,
+			final boolean[] tileable,
+			final int nTiles,
+			final int blockMultiple ) {
+		final long[] grid = new long[ dims.length ];
+		Arrays.fill( grid, 1 );
+		long total = 1;
+		while ( total < nTiles ) {
+			int best = -1;
+			double bestSize = 0;
+			for ( int d = 0; d < dims.length; d++ ) {
+				if ( !tileable[ d ] ) continue;
+				final double size = dims[ d ] / ( double ) grid[ d ];
+				if ( size > bestSize && dims[ d ] / ( double ) ( grid[ d ] + 1 ) >= blockMultiple ) {
+					bestSize = size;
+					best = d;
+				}
+			}
+			if ( best < 0 ) break;
+			total = total / grid[ best ] * ( grid[ best ] + 1 );
+			grid[ best ]++;
+		}
+		return grid;
+	}
 
-		// Create the executor pool
-		pool = Executors.newSingleThreadExecutor();
+	public RandomAccessibleInterval< FloatType > runModel( final TiledView< FloatType > tiledView ) throws ExecutionException {
 
 		progressWindow.setStepStart( CSBDeepProgress.STEP_RUNMODEL );
 
-		final boolean multithreading = false;
+		final InferenceBackend backend = getBackend();
+		final int workers = backend.getConcurrency();
+		final int batchSize = planTilesPerRun( tiledView );
+		if ( batchSize > 1 ) {
+			progressWindow.addLog( "Stacking up to " + batchSize + " tiles per run.." );
+		}
 
-		// Set padding to negative to remove it later
-		final long[] negPadding = padding.clone();
-		negPadding[ largestDim ] = -padding[ largestDim ];
+		// One thread converts the tiles to tensors, one converts the results
+		// back. The model is executed in the calling thread and the additional
+		// inference workers in between.
+		pool = Executors.newFixedThreadPool( 1 + workers );
 
-		final Cursor< RandomAccessibleInterval< FloatType > > cursor =
-				Views.iterable( tiledView ).cursor();
+		final BlockingQueue< TileJob > inputQueue = new ArrayBlockingQueue<>( Math.max( PIPELINE_CAPACITY, workers ) );
+		final BlockingQueue< TileJob > outputQueue = new ArrayBlockingQueue<>( Math.max( PIPELINE_CAPACITY, workers ) );
 
-		// Loop over the tiles and execute the prediction
-		final List< RandomAccessibleInterval< FloatType > > results = new ArrayList<>();
-		final List< Future< RandomAccessibleInterval< FloatType > > > futures = new ArrayList<>();
+		final long[] gridMax = Intervals.maxAsLongArray( tiledView );
+		output = null;
+		headOutputs = new ArrayList<>( Collections.nCopies( backend.getOutputCount() - 1, null ) );
+		final boolean[] skippedHeads = new boolean[ headOutputs.size() ];
 
 		progressWindow.setProgressBarValue( 0 );
 		doneTileCount = 0;
 
-		while ( cursor.hasNext() && !cancelPressed ) {
-			final RandomAccessibleInterval< FloatType > tile = cursor.next();
-			//uiService.show(tile);
-			final Future< RandomAccessibleInterval< FloatType > > future = pool.submit(
-					new TileRunner( tile, negPadding, progressWindow ) );
-
-			progressWindow.addLog(
-					"Processing tile " + ( doneTileCount + 1 ) + ".." );
+		if ( checkpointStore != null ) {
+			try {
+				checkpointStore.open( getPlan( tiledView ) );
+			} catch ( final IOException exc ) {
+				progressWindow.addError( "Can not use checkpoint directory: " + exc.getMessage() );
+				checkpointStore = null;
+			}
+		}
 
-			futures.add( future );
+		// Stage 1: convert the tiles to tensors
+		final Future< ? > converter = pool.submit( () -> {
+			final Cursor< RandomAccessibleInterval< FloatType > > cursor =
+					Views.iterable( tiledView ).cursor();
+			final List< TileJob > batch = new ArrayList<>();
+			final List< RandomAccessibleInterval< FloatType > > batchTiles = new ArrayList<>();
+			int index = 0;
+			try {
+				while ( cursor.hasNext() && !cancelPressed ) {
+					final RandomAccessibleInterval< FloatType > tile = cursor.next();
+					final TileJob job = new TileJob( index++, positionOf( cursor ) );
+					// Tiles finished by a previous run are restored by the writer
+					job.restored = checkpointStore != null && checkpointStore.contains( job.index );
+					if ( job.restored ) {
+						enqueue( inputQueue, job );
+						continue;
+					}
+					// Only tiles of the same size can be stacked
+					if ( !batchTiles.isEmpty() && !Intervals.equalDimensions( batchTiles.get( 0 ), tile ) ) {
+						enqueue( inputQueue, packTiles( batch, batchTiles, backend ) );
+					}
+					batch.add( job );
+					batchTiles.add( tile );
+					if ( batch.size() == batchSize ) {
+						enqueue( inputQueue, packTiles( batch, batchTiles, backend ) );
+					}
+				}
+				if ( !batch.isEmpty() && !cancelPressed ) {
+					enqueue( inputQueue, packTiles( batch, batchTiles, backend ) );
+				}
+			} finally {
+				putEnd( inputQueue );
+			}
+			return null;
+		} );
 
-			if ( !multithreading ) {
+		// Stage 3: convert the results back and remove the padding
+		final Future< ? > writer = pool.submit( () -> {
+			TileJob job;
+			while ( ( job = outputQueue.take() ) != TileJob.END ) {
 				try {
-					final RandomAccessibleInterval< FloatType > res = future.get();
-					if ( res == null ) return null;
-					results.add( res );
-					upTileCount();
-				} catch ( final InterruptedException exc ) {
-					pool.shutdownNow();
-					progressWindow.setCurrentStepFail();
-					return null;
+					if ( job.restored ) {
+						// The additional heads are stored before the first one
+						for ( int head = 1; head <= headOutputs.size(); head++ ) {
+							if ( checkpointStore.contains( job.index, head ) ) {
+								writeHead( head, checkpointStore.load( job.index, head ), job.position, gridMax );
+							}
+						}
+						final RandomAccessibleInterval< FloatType > result = checkpointStore.load( job.index );
+						writeTile( result, job.position, gridMax );
+						tileFinished( job, result );
+						continue;
+					}
+					// Write the additional heads first, the tile counts as
+					// finished with the first one
+					for ( int head = 1; head < job.outputs.size(); head++ ) {
+						if ( skippedHeads[ head - 1 ] ) { continue; }
+						if ( !isStitchable( job.outputs.get( 0 ).shape(), job.outputs.get( head ).shape() ) ) {
+							progressWindow.addLog(
+									"Output " + head + " does not match the shape of the first output, it is not stitched." );
+							skippedHeads[ head - 1 ] = true;
+							continue;
+						}
+						writeOutput( job, head, tiledView, gridMax );
+					}
+					writeOutput( job, 0, tiledView, gridMax );
+				} finally {
+					job.close();
 				}
 			}
-		}
-		if ( multithreading ) {
-			for ( final Future< RandomAccessibleInterval< FloatType > > future : futures ) {
+			return null;
+		} );
+
+		// Stage 2: execute the model
+		try {
+			if ( warmUp ) {
+				// The first tiles are converted in the meantime
+				progressWindow.addLog( "Warming up the model.." );
 				try {
-					final RandomAccessibleInterval< FloatType > res = future.get();
-					if ( res == null ) return null;
-					results.add( res );
-					upTileCount();
-				} catch ( final InterruptedException exc ) {
-					pool.shutdownNow();
-					progressWindow.setCurrentStepFail();
-					return null;
+					backend.warmUp( getTensorShape( tiledView, batchSize ) );
+				} catch ( final RuntimeException exc ) {
+					progressWindow.addError( "Warm up failed: " + exc.getMessage() );
 				}
 			}
+			final List< Future< Boolean > > inference = new ArrayList<>();
+			for ( int i = 1; i < workers; i++ ) {
+				inference.add( pool.submit( () -> infer( backend, inputQueue, outputQueue, writer ) ) );
+			}
+			boolean success = infer( backend, inputQueue, outputQueue, writer );
+			for ( final Future< Boolean > worker : inference ) {
+				success = success && worker.get();
+			}
+			if ( !success ) {
+				abort( inputQueue, outputQueue );
+				progressWindow.setCurrentStepFail();
+				return null;
+			}
+			converter.get();
+			put( outputQueue, TileJob.END, writer );
+			writer.get();
+		} catch ( final InterruptedException exc ) {
+			abort( inputQueue, outputQueue );
+			progressWindow.setCurrentStepFail();
+			return null;
+		} catch ( final ExecutionException exc ) {
+			abort( inputQueue, outputQueue );
+			throw exc;
+		} finally {
+			if ( ownBackend != null ) {
+				ownBackend.close();
+				ownBackend = null;
+			}
 		}
 
 		// Shutdown the executor pool
 		pool.shutdown();
+		bufferPool.clear();
+
+		if ( cancelPressed ) {
+			progressWindow.setCurrentStepFail();
+			return null;
+		}
+
+		// The stitched result is complete, the stored tiles are not needed anymore
+		if ( checkpointStore != null ) {
+			checkpointStore.clear();
+		}
 
 		progressWindow.setCurrentStepDone();
-		return results;
+		return output;
 	}
 
-	protected void upTileCount() {
-		doneTileCount++;
-		progressWindow.setProgressBarValue( doneTileCount );
+	/**
+	 * The backend running the model. Without a backend shared by the command,
+	 * this prediction creates its own engine, which is closed at the end of
+	 * {@link #runModel(TiledView)}. If this prediction has a profile, the
+	 * runs of the engine are recorded in it.
+	 */
+	protected InferenceBackend getBackend() {
+		if ( backend == null && ownBackend == null ) {
+			ownBackend = createEngine();
+		}
+		final InferenceBackend used = backend != null ? backend : ownBackend;
+		if ( profile != null && used instanceof InferenceEngine ) { return ( ( InferenceEngine ) used ).profiled(
+				profile ); }
+		return used;
 	}
 
-	protected List< RandomAccessibleInterval< FloatType > > postprocess( final List< RandomAccessibleInterval< FloatType > > results ) {
+	/**
+	 * Creates an engine for the model with the session options of this
+	 * prediction. It fetches all outputs of the signature of the model, see
+	 * {@link #getHeadOutputs()}.
+	 */
+	protected InferenceEngine createEngine() {
+		if ( concurrentTiles > 1 ) {
+			progressWindow.addLog( "Preparing " + concurrentTiles + " sessions.." );
+		}
+		final InferenceEngine engine = new InferenceEngine(
+				model,
+				bridge.getInputTensorInfo(),
+				InferenceEngine.getOutputTensorInfos(
+						bridge.getOutputTensorInfo(),
+						InferenceEngine.getServingSignature( model ) ),
+				concurrentTiles,
+				sessionConfig );
+		if ( engine.getSessionError() != null ) {
+			progressWindow.addError(
+					"Can not create the configured sessions, using the session of the model: " + engine.getSessionError() );
+		}
+		return engine;
+	}
 
-		if ( results != null && results.size() > 0 ) {
+	/**
+	 * Runs the model on the tiles of the input queue until the end of the
+	 * tiles is reached. Several of these run at the same time if
+	 * {@link #concurrentTiles} is larger than one.
+	 *
+	 * @return false if the model returned no result for a tile
+	 */
+	private boolean infer(
+			final InferenceBackend backend,
+			final BlockingQueue< TileJob > inputQueue,
+			final BlockingQueue< TileJob > outputQueue,
+			final Future< ? > writer ) throws InterruptedException, ExecutionException {
+		TileJob job;
+		while ( ( job = take( inputQueue ) ) != TileJob.END ) {
+			if ( !job.restored ) {
+				if ( job.members == null ) {
+					progressWindow.addLog( "Processing tile " + ( job.index + 1 ) + ".." );
+				} else {
+					progressWindow.addLog(
+							"Processing tiles " + ( job.index + 1 ) + " to " + ( job.index + job.members.size() ) + ".." );
+				}
+				try {
+					job.outputs = backend.runAll( job.prepared );
+					job.closeInput();
+				} catch ( final InterruptedException exc ) {
+					job.close();
+					throw exc;
+				} catch ( final Exception exc ) {
+					job.close();
+					throw new ExecutionException( exc );
+				}
+				if ( job.outputs == null ) {
+					job.close();
+					return false;
+				}
+			}
+			put( outputQueue, job, writer );
+		}
+		// Let the other workers see the end, too
+		putEnd( inputQueue );
+		return true;
+	}
 
-			progressWindow.setStepStart( CSBDeepProgress.STEP_POSTPROCESSING );
+	/**
+	 * The number of tiles stacked along the batch dimension of one tensor.
+	 * Tiles can only be stacked if the model accepts any batch size and the
+	 * tiles have size one in the image dimension mapped to it. The
+	 * {@link TilePlanner} limits the number to its memory budget.
+	 */
+	protected int planTilesPerRun( final TiledView< FloatType > tiledView ) {
+		if ( tilesPerRun <= 1 || nTiles <= 1 ) { return 1; }
+		final TensorShapeProto shape = bridge.getInputTensorInfo().getTensorShape();
+		if ( shape.getDimCount() == 0 || shape.getDim( 0 ).getSize() > 0 ) { return 1; }
+		final long[] tileDims = Intervals.dimensionsAsLongArray( Views.iterable( tiledView ).firstElement() );
+		for ( int i = 0; i < tileDims.length; i++ ) {
+			if ( mappingIn[ i ] == 0 && tileDims[ i ] != 1 ) { return 1; }
+		}
+		final int maxTiles = Math.min( tilesPerRun, nTiles );
+		return tilePlanner != null ? tilePlanner.planBatchSize( tileDims, maxTiles ) : maxTiles;
+	}
+
+	/**
+	 * The shape of the input tensor of a run with {@code batchSize} tiles of
+	 * the size of the first tile.
+	 */
+	protected long[] getTensorShape( final TiledView< FloatType > tiledView, final int batchSize ) {
+		final RandomAccessibleInterval< FloatType > tile = Views.iterable( tiledView ).firstElement();
+		final long[] shape = new long[ mappingIn.length ];
+		for ( int i = 0; i < mappingIn.length; i++ ) {
+			shape[ mappingIn[ i ] ] = i < tile.numDimensions() ? tile.dimension( i ) : 1;
+		}
+		if ( batchSize > 1 ) {
+			shape[ 0 ] = batchSize;
+		}
+		return shape;
+	}
 
-			progressWindow.addLog( "Merging tiles.." );
+	/**
+	 * Converts the collected tiles into the input of one run and clears the
+	 * lists. More than one tile get stacked along the batch dimension. The
+	 * input is handed to the backend here, so the inference stage only runs
+	 * the model.
+	 */
+	private TileJob packTiles(
+			final List< TileJob > batch,
+			final List< RandomAccessibleInterval< FloatType > > tiles,
+			final InferenceBackend backend ) {
+		final DataType inputType = backend.getInputDataType();
+		final TileJob job;
+		if ( batch.size() == 1 ) {
+			job = batch.get( 0 );
+			job.setInput( bufferPool, inputType, DatasetConverter.getShape( tiles.get( 0 ), mappingIn ) );
+			DatasetConverter.datasetToBuffer( tiles.get( 0 ), mappingIn, job.input, inputType, conversionThreads );
+		} else {
+			job = new TileJob( new ArrayList<>( batch ) );
+			job.setInput( bufferPool, inputType, DatasetConverter.getShape( tiles, mappingIn ) );
+			DatasetConverter.datasetsToBuffer( tiles, mappingIn, job.input, inputType, conversionThreads );
+		}
+		batch.clear();
+		tiles.clear();
+		try {
+			job.prepared = backend.prepare( job.inputShape, job.input );
+		} finally {
+			job.releaseInput();
+		}
+		return job;
+	}
 
-			// Arrange and combine the tiles again
-			final long[] grid = new long[ results.get( 0 ).numDimensions() ];
-			for ( int i = 0; i < grid.length; i++ ) {
-				grid[ i ] = i == largestDim ? nTiles : 1;
+	/**
+	 * Converts one output of a run back and finishes its tiles. Stacked
+	 * results are split along the batch dimension.
+	 */
+	private void writeOutput(
+			final TileJob job,
+			final int head,
+			final TiledView< FloatType > tiledView,
+			final long[] gridMax ) {
+		final InferenceBackend.Output output = job.outputs.get( head );
+		final long[] shape = output.shape();
+		final float[] array = bufferPool.acquireArray( shape );
+		try {
+			output.writeTo( array );
+			if ( job.members == null ) {
+				finishTile(
+						job,
+						head,
+						DatasetConverter.arrayToDataset( array, shape, mappingOut, dropSingletonDims ),
+						tiledView,
+						gridMax );
+				return;
 			}
-			final RandomAccessibleInterval< FloatType > result =
-					new CombinedView<>( new ArrangedView<>( results, grid ) );
+			final RandomAccessibleInterval< FloatType > results =
+					DatasetConverter.arrayToDataset( array, shape, mappingOut, false );
+			final int batchDim = indexOf( mappingOut, 0 );
+			final long[] min = Intervals.minAsLongArray( results );
+			final long[] max = Intervals.maxAsLongArray( results );
+			for ( int k = 0; k < job.members.size(); k++ ) {
+				min[ batchDim ] = k;
+				max[ batchDim ] = k;
+				final RandomAccessibleInterval< FloatType > result =
+						Views.zeroMin( Views.interval( results, min, max ) );
+				finishTile(
+						job.members.get( k ),
+						head,
+						dropSingletonDims ? Views.dropSingletonDimensions( result ) : result,
+						tiledView,
+						gridMax );
+			}
+		} finally {
+			bufferPool.releaseArray( shape, array );
+		}
+	}
+
+	/**
+	 * Removes the padding of a predicted tile, stores it as checkpoint and
+	 * writes it into the output of its head.
+	 */
+	private void finishTile(
+			final TileJob job,
+			final int head,
+			final RandomAccessibleInterval< FloatType > prediction,
+			final TiledView< FloatType > tiledView,
+			final long[] gridMax ) {
+		final long[] min = Intervals.minAsLongArray( prediction );
+		final long[] max = Intervals.maxAsLongArray( prediction );
+		for ( int i = 0; i < job.position.length && i < min.length; i++ ) {
+			min[ i ] += tiledView.getOverlapBefore( i, job.position[ i ] );
+			max[ i ] -= tiledView.getOverlapAfter( i, job.position[ i ] );
+		}
+		final RandomAccessibleInterval< FloatType > result = Views.zeroMin( Views.interval( prediction, min, max ) );
+		saveCheckpoint( job.index, head, result );
+		if ( head > 0 ) {
+			writeHead( head, result, job.position, gridMax );
+			return;
+		}
+		writeTile( result, job.position, gridMax );
+		tileFinished( job, result );
+	}
+
+	/**
+	 * Additional outputs are stitched like the first one if they only differ
+	 * in dimensions which are not mapped from the input image, e.g. the
+	 * number of channels.
+	 */
+	private boolean isStitchable( final long[] first, final long[] shape ) {
+		if ( shape.length != first.length ) { return false; }
+		for ( int d = 0; d < input.numDimensions() && d < mappingOut.length; d++ ) {
+			if ( mappingOut[ d ] > 0 && shape[ mappingOut[ d ] ] != first[ mappingOut[ d ] ] ) { return false; }
+		}
+		return true;
+	}
 
-			progressWindow.addLog( "Crop to original size.." );
+	private void tileFinished( final TileJob job, final RandomAccessibleInterval< FloatType > result ) {
+		upTileCount();
+		for ( final TileListener listener : tileListeners ) {
+			listener.tileFinished( job.index, job.position.clone(), result );
+		}
+	}
 
-			RandomAccessibleInterval< FloatType > fittedResult =
-					expandDimToSize( result, largestDim, largestSize );
+	private static int indexOf( final int[] mapping, final int value ) {
+		for ( int i = 0; i < mapping.length; i++ ) {
+			if ( mapping[ i ] == value ) { return i; }
+		}
+		return -1;
+	}
 
-			// undo Expand other dimensions to fit blockMultiple
-			for ( int i = 0; i < input.numDimensions(); i++ ) {
-				if ( i != largestDim ) {
-					fittedResult = expandDimToSize( fittedResult, i, input.dimension( i ) );
-				}
+	/**
+	 * Describes the tiling of this prediction. Stored tiles are only reused
+	 * for the exact same plan.
+	 */
+	protected String getPlan( final TiledView< FloatType > tiledView ) {
+		return getClass().getName() +
+				" source " + Arrays.toString( Intervals.dimensionsAsLongArray( tiledView.getSource() ) ) +
+				" tiles " + Arrays.toString( Intervals.dimensionsAsLongArray( tiledView ) ) +
+				" block " + Arrays.toString( tiledView.getBlockSize() ) +
+				" overlap " + Arrays.toString( tiledView.getOverlap() ) +
+				" border " + Arrays.toString( tiledView.getBorderOverlap() ) +
+				" in " + Arrays.toString( mappingIn ) +
+				" out " + Arrays.toString( mappingOut ) +
+				" drop " + dropSingletonDims;
+	}
+
+	private void saveCheckpoint( final int index, final int head, final RandomAccessibleInterval< FloatType > tile ) {
+		if ( checkpointStore == null ) { return; }
+		try {
+			checkpointStore.save( index, head, tile );
+		} catch ( final IOException exc ) {
+			// Losing the checkpoint must not fail the prediction itself
+			progressWindow.addError( "Could not save checkpoint of tile " + ( index + 1 ) + ": " + exc.getMessage() );
+		}
+	}
+
+	/**
+	 * Copies the core of a finished tile into its region of {@link #output}.
+	 * The output image is allocated when the first tile arrives because only
+	 * then the number of output channels is known.
+	 */
+	protected void writeTile(
+			final RandomAccessibleInterval< FloatType > tile,
+			final long[] position,
+			final long[] gridMax ) {
+
+		if ( output == null ) {
+			output = createOutput( tile );
+		}
+		writeTile( output, tile, position, gridMax );
+	}
+
+	/**
+	 * Copies the core of a finished tile of an additional output into its
+	 * image in {@link #headOutputs}.
+	 */
+	private void writeHead(
+			final int head,
+			final RandomAccessibleInterval< FloatType > tile,
+			final long[] position,
+			final long[] gridMax ) {
+		if ( headOutputs.get( head - 1 ) == null ) {
+			headOutputs.set( head - 1, createOutput( tile ) );
+		}
+		writeTile( headOutputs.get( head - 1 ), tile, position, gridMax );
+	}
+
+	private Img< FloatType > createOutput( final RandomAccessibleInterval< FloatType > tile ) {
+		final long[] dims = new long[ tile.numDimensions() ];
+		for ( int d = 0; d < dims.length; d++ ) {
+			dims[ d ] = getOutputDimension( d, tile );
+		}
+		return Util.getArrayOrCellImgFactory( new FinalDimensions( dims ), new FloatType() ).create(
+				dims,
+				new FloatType() );
+	}
+
+	private void writeTile(
+			final Img< FloatType > output,
+			final RandomAccessibleInterval< FloatType > tile,
+			final long[] position,
+			final long[] gridMax ) {
+
+		final int n = output.numDimensions();
+		final long[] offset = new long[ n ];
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; d++ ) {
+			final boolean tiled = d < position.length && gridMax[ d ] > 0;
+			offset[ d ] = tiled ? position[ d ] * tile.dimension( d ) : 0;
+			min[ d ] = offset[ d ];
+			// The last tile fills the rest, the others only their own region
+			max[ d ] = !tiled || position[ d ] == gridMax[ d ] ? output.max( d ) : Math.min(
+					output.max( d ),
+					offset[ d ] + tile.dimension( d ) - 1 );
+			// This tile lies completely in the expanded part of the image
+			if ( min[ d ] > max[ d ] ) { return; }
+		}
+
+		// Copy in bulk if the tile covers the whole region
+		final RandomAccessibleInterval< FloatType > target = Views.interval( output, min, max );
+		final RandomAccessibleInterval< FloatType > placed = Views.translate( tile, offset );
+		if ( Intervals.contains( placed, target ) && DatasetConverter.writeToRegion(
+				Views.interval( placed, target ),
+				target,
+				conversionThreads ) ) { return; }
+
+		final RandomAccess< FloatType > in =
+				Views.translate( Views.extendMirrorDouble( tile ), offset ).randomAccess();
+		final Cursor< FloatType > out = Views.flatIterable( target ).localizingCursor();
+		while ( out.hasNext() ) {
+			out.fwd();
+			in.setPosition( out );
+			out.get().set( in.get() );
+		}
+	}
+
+	/**
+	 * The size of the stitched output in dimension {@code d}. Dimensions of the
+	 * input image are cropped to their original size.
+	 */
+	protected long getOutputDimension( final int d, final RandomAccessibleInterval< FloatType > tile ) {
+		return d < input.numDimensions() ? input.dimension( d ) : tile.dimension( d );
+	}
+
+	private static long[] positionOf( final Localizable localizable ) {
+		final long[] position = new long[ localizable.numDimensions() ];
+		localizable.localize( position );
+		return position;
+	}
+
+	/**
+	 * Waits for the next job of the previous stage. Stops waiting if the pool
+	 * gets shut down, e.g. by {@link #cancel()}.
+	 */
+	private TileJob take( final BlockingQueue< TileJob > queue ) throws InterruptedException {
+		while ( true ) {
+			final TileJob job = queue.poll( 100, TimeUnit.MILLISECONDS );
+			if ( job != null ) { return job; }
+			if ( pool.isShutdown() ) { throw new InterruptedException( "Prediction canceled" ); }
+		}
+	}
+
+	/**
+	 * Hands a converted job to the inference stage.
+	 */
+	private static void enqueue( final BlockingQueue< TileJob > queue, final TileJob job ) throws InterruptedException {
+		try {
+			queue.put( job );
+		} catch ( final InterruptedException exc ) {
+			job.close();
+			throw exc;
+		}
+	}
+
+	/**
+	 * Hands a job to the next stage. Fails if the next stage died.
+	 */
+	private static void put( final BlockingQueue< TileJob > queue, final TileJob job, final Future< ? > consumer )
+			throws InterruptedException,
+			ExecutionException {
+		while ( !queue.offer( job, 100, TimeUnit.MILLISECONDS ) ) {
+			if ( consumer.isDone() ) {
+				job.close();
+				consumer.get();
+				throw new ExecutionException( new IllegalStateException( "Pipeline stage stopped early" ) );
 			}
+		}
+	}
+
+	/**
+	 * Marks the end of the tiles. Gives up if the pool gets shut down.
+	 */
+	private void putEnd( final BlockingQueue< TileJob > queue ) {
+		try {
+			while ( !queue.offer( TileJob.END, 100, TimeUnit.MILLISECONDS ) ) {
+				if ( pool.isShutdown() ) { return; }
+			}
+		} catch ( final InterruptedException exc ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void abort( final BlockingQueue< TileJob > inputQueue, final BlockingQueue< TileJob > outputQueue ) {
+		pool.shutdownNow();
+		for ( final TileJob job : inputQueue ) {
+			job.close();
+		}
+		for ( final TileJob job : outputQueue ) {
+			job.close();
+		}
+		inputQueue.clear();
+		outputQueue.clear();
+	}
+
+	protected void upTileCount() {
+		doneTileCount++;
+		progressWindow.setProgressBarValue( doneTileCount );
+	}
+
+	protected List< RandomAccessibleInterval< FloatType > > postprocess( final RandomAccessibleInterval< FloatType > result ) {
 
-//			ImageJ ij = new ImageJ();
-//			ij.ui().show( "_result", result );
-//			ij.ui().show( "_expandedresult", expandedresult );
+		if ( result != null ) {
 
-			final int lastdim = fittedResult.numDimensions() - 1;
+			progressWindow.setStepStart( CSBDeepProgress.STEP_POSTPROCESSING );
+
+			final int lastdim = result.numDimensions() - 1;
 
-			if ( fittedResult.dimension(
-					lastdim ) > 0 ) { return splitChannels( fittedResult, lastdim ); }
+			if ( result.dimension(
+					lastdim ) > 0 ) { return splitChannels( result, lastdim ); }
 
 			progressWindow.setCurrentStepFail();
 			return null;
@@ -308,6 +985,30 @@ public class TiledPrediction
 		return new ArrayList<>();
 	}
 
+	/**
+	 * Runs the prediction on {@code executor} without blocking. Canceling
+	 * the returned future cancels the prediction. Use a {@link TileListener}
+	 * to follow the single tiles.
+	 *
+	 * @return the future result, see {@link #call()}
+	 */
+	public CompletableFuture< List< RandomAccessibleInterval< FloatType > > > predictAsync( final Executor executor ) {
+		final CompletableFuture< List< RandomAccessibleInterval< FloatType > > > future =
+				CompletableFuture.supplyAsync( () -> {
+					try {
+						return call();
+					} catch ( final ExecutionException exc ) {
+						throw new CompletionException( exc.getCause() );
+					}
+				}, executor );
+		future.whenComplete( ( result, exc ) -> {
+			if ( future.isCancelled() ) {
+				cancel();
+			}
+		} );
+		return future;
+	}
+
 	@Override
 	public List< RandomAccessibleInterval< FloatType > > call() throws ExecutionException {
 		final TiledView< FloatType > tiledView = preprocess();
@@ -315,23 +1016,9 @@ public class TiledPrediction
 		progressWindow.setProgressBarValue( 0 );
 
 		progressWindow.setStepStart( CSBDeepProgress.STEP_RUNMODEL );
-		final List< RandomAccessibleInterval< FloatType > > results = runModel( tiledView );
-
-		return postprocess( results );
-	}
+		final RandomAccessibleInterval< FloatType > result = runModel( tiledView );
 
-	protected static < T extends RealType< T > > int getLargestDim( final RandomAccessibleInterval< T > input, final DatasetTensorBridge bridge ) {
-		// Get the largest dimension and its size
-		int largestDim = 0;
-		long largestSize = 0;
-		for ( int d = 0; d < input.numDimensions(); d++ ) {
-			final long dimSize = input.dimension( d );
-			if ( bridge.getDimTypeByDatasetDim( d ).isXY() && dimSize > largestSize ) {
-				largestSize = dimSize;
-				largestDim = d;
-			}
-		}
-		return largestDim;
+		return postprocess( result );
 	}
 
 	protected static void calculateMapping( final int[] mappingIn, final int[] mappingOut, final DatasetTensorBridge bridge ) {
@@ -401,24 +1088,141 @@ public class TiledPrediction
 		return Views.interval( Views.extendMirrorDouble( im ), new FinalInterval( min, max ) );
 	}
 
-	protected RandomAccessibleInterval< FloatType > executeGraphWithPadding( final RandomAccessibleInterval< FloatType > tile ) throws Exception {
+	/**
+	 * Set the overlap added at the image borders. The tiles at the border do
+	 * not need the full {@link #overlap} because the padding there only
+	 * consists of mirrored data. Use 0 to pad only between tiles or the
+	 * receptive field of the network. A negative value pads the border like
+	 * the faces between tiles.
+	 */
+	public void setBorderOverlap( final int borderOverlap ) {
+		this.borderOverlap = borderOverlap;
+	}
 
-		try (final Tensor inputTensor = DatasetConverter.datasetToTensor( tile, mappingIn )) {
-			if ( inputTensor == null ) { return null; }
-			try (final Tensor outputTensor = TensorFlowRunner.executeGraph(
-					model,
-					inputTensor,
-					bridge.getInputTensorInfo(),
-					bridge.getOutputTensorInfo() )) {
+	/**
+	 * Set a planner which chooses the number of tiles from a memory budget
+	 * before the model is run. {@link #nTiles} is then used as the minimum
+	 * number of tiles.
+	 */
+	public void setTilePlanner( final TilePlanner tilePlanner ) {
+		this.tilePlanner = tilePlanner;
+	}
 
-				if ( outputTensor != null ) { return DatasetConverter.tensorToDataset(
-						outputTensor,
-						mappingOut,
-						dropSingletonDims ); }
-			}
+	/**
+	 * Set an autotuner which chooses the tile size with the highest
+	 * throughput on the backend of this prediction. Takes precedence over
+	 * {@link #nTiles}, the memory budget of the {@link TilePlanner} limits the
+	 * tuned tile size.
+	 */
+	public void setAutotuner( final TilingAutotuner autotuner ) {
+		this.autotuner = autotuner;
+	}
 
-		}
-		return null;
+	/**
+	 * Set the number of tiles per image dimension. Overrides the automatic
+	 * distribution of {@link #nTiles} over the tileable dimensions. Use 1 for
+	 * dimensions that should not be tiled.
+	 */
+	public void setTilesPerDim( final long[] tilesPerDim ) {
+		this.requestedTilesPerDim = tilesPerDim;
+	}
+
+	/**
+	 * Set the number of tiles the model runs on at the same time. Each of them
+	 * gets its own session with an equal share of the CPU threads.
+	 */
+	public void setConcurrentTiles( final int concurrentTiles ) {
+		this.concurrentTiles = concurrentTiles;
+	}
+
+	/**
+	 * Set the maximum number of tiles stacked into the batch dimension of one
+	 * run of the model. The {@link TilePlanner} can lower it to fit its
+	 * memory budget.
+	 */
+	public void setTilesPerRun( final int tilesPerRun ) {
+		this.tilesPerRun = tilesPerRun;
+	}
+
+	/**
+	 * Set the maximum number of threads converting a single tile between the
+	 * image and the tensor layout. Values smaller than one use all available
+	 * cores. The threads are shared with other predictions.
+	 */
+	public void setConversionThreads( final int conversionThreads ) {
+		this.conversionThreads = conversionThreads;
+	}
+
+	/**
+	 * Set if the model should run once on a tensor of zeros before the first
+	 * tile, see {@link InferenceEngine#warmUp(long[])}.
+	 */
+	public void setWarmUp( final boolean warmUp ) {
+		this.warmUp = warmUp;
+	}
+
+	public void addTileListener( final TileListener listener ) {
+		tileListeners.add( listener );
+	}
+
+	public void removeTileListener( final TileListener listener ) {
+		tileListeners.remove( listener );
+	}
+
+	/**
+	 * Set the engine running the model. It is shared with other predictions
+	 * of the same model and not closed by this prediction. The number of
+	 * concurrent tiles and the session options of the engine are used instead
+	 * of the ones set here.
+	 */
+	public void setEngine( final InferenceEngine engine ) {
+		this.engine = engine;
+		this.backend = engine;
+	}
+
+	/**
+	 * Set a profile collecting the time per operation of the runs of this
+	 * prediction, see {@link InferenceEngine#profiled(RunProfile)}. Runs of
+	 * other predictions sharing the engine are not recorded.
+	 */
+	public void setProfile( final RunProfile profile ) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Set the backend running the model instead of a TensorFlow
+	 * {@link InferenceEngine}, e.g. to test the tiling without a native
+	 * library. Like an engine, it is not closed by this prediction.
+	 */
+	public void setBackend( final InferenceBackend backend ) {
+		this.backend = backend;
+	}
+
+	/**
+	 * Set the TensorFlow session options used to run the model.
+	 */
+	public void setSessionConfig( final SessionConfig sessionConfig ) {
+		this.sessionConfig = sessionConfig;
+	}
+
+	/**
+	 * The stitched results of the additional outputs of the backend, see
+	 * {@link InferenceBackend#runAll(InferenceBackend.Input)}. The list has
+	 * one entry per additional output, null for outputs which could not be
+	 * stitched because their shape does not match the first output. The
+	 * results are not postprocessed.
+	 */
+	public List< Img< FloatType > > getHeadOutputs() {
+		return Collections.unmodifiableList( headOutputs );
+	}
+
+	/**
+	 * Set a store for finished tiles. Tiles found in the store are restored
+	 * instead of being predicted again, all stored tiles get deleted once the
+	 * prediction is complete.
+	 */
+	public void setCheckpointStore( final TileCheckpointStore checkpointStore ) {
+		this.checkpointStore = checkpointStore;
 	}
 
 	/**
@@ -430,44 +1234,89 @@ public class TiledPrediction
 		this.dropSingletonDims = dropSingletonDims;
 	}
 
-	class TileRunner implements Callable< RandomAccessibleInterval< FloatType > > {
-
-		RandomAccessibleInterval< FloatType > tile;
-		CSBDeepProgress progressWindow;
-		long[] negPadding;
-
-		public TileRunner(
-				final RandomAccessibleInterval< FloatType > tile,
-				final long[] negPadding,
-				final CSBDeepProgress progressWindow ) {
-			this.tile = tile;
-			this.negPadding = negPadding;
-			this.progressWindow = progressWindow;
+	/**
+	 * A tile travelling through the pipeline of {@link #runModel(TiledView)}.
+	 */
+	static class TileJob {
+
+		static final TileJob END = new TileJob( -1, null );
+
+		final int index;
+		final long[] position;
+
+		/**
+		 * The tiles stacked into this job, null for a single tile.
+		 */
+		final List< TileJob > members;
+		ByteBuffer input;
+		long[] inputShape;
+		DataType inputType;
+		TensorBufferPool inputPool;
+		InferenceBackend.Input prepared;
+
+		/**
+		 * The outputs of the run, the first one is the output of the model.
+		 */
+		List< InferenceBackend.Output > outputs;
+		boolean restored;
+
+		TileJob( final int index, final long[] position ) {
+			this.index = index;
+			this.position = position;
+			this.members = null;
 		}
 
-		@Override
-		public RandomAccessibleInterval< FloatType > call() throws Exception {
-			RandomAccessibleInterval< FloatType > result =
-					executeGraphWithPadding( tile );
-			if ( result != null ) {
+		TileJob( final List< TileJob > members ) {
+			this.index = members.get( 0 ).index;
+			this.position = null;
+			this.members = members;
+		}
 
-				final long[] negPaddingPlus = new long[ result.numDimensions() ];
-				for ( int i = 0; i < negPadding.length; i++ ) {
-					negPaddingPlus[ i ] = negPadding[ i ];
-				}
-				result = Views.zeroMin( Views.expandZero( result, negPaddingPlus ) );
+		/**
+		 * Takes a buffer for the input of the given shape from the pool.
+		 */
+		void setInput( final TensorBufferPool pool, final DataType type, final long[] shape ) {
+			inputPool = pool;
+			inputType = type;
+			inputShape = shape;
+			input = pool.acquire( type, shape );
+		}
 
-//						ImageJ ij = new ImageJ();
-//						ij.ui().show( tileExecuted );
+		/**
+		 * Returns the input buffer to its pool.
+		 */
+		void releaseInput() {
+			if ( input != null ) {
+				inputPool.release( inputType, inputShape, input );
+				input = null;
+			}
+		}
 
+		/**
+		 * Closes the input prepared by the backend.
+		 */
+		void closeInput() {
+			if ( prepared != null ) {
+				prepared.close();
+				prepared = null;
 			}
-			return result;
+		}
 
+		void close() {
+			releaseInput();
+			closeInput();
+			if ( outputs != null ) {
+				for ( final InferenceBackend.Output output : outputs ) {
+					output.close();
+				}
+				outputs = null;
+			}
 		}
 
 	}
 
 	public void cancel() {
+		cancelPressed = true;
 		if ( pool != null ) {
 			pool.shutdownNow();
 		}
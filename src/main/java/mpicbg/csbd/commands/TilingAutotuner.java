@@ -0,0 +1,321 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.commands;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.scijava.prefs.PrefService;
+
+import mpicbg.csbd.backend.InferenceBackend;
+import mpicbg.csbd.tensorflow.DatasetConverter;
+import mpicbg.csbd.tensorflow.TensorBufferPool;
+import mpicbg.csbd.ui.CSBDeepProgress;
+
+/**
+ * Finds the tile size with the highest throughput for a model on this
+ * machine. A few candidate tile sizes are run through the backend of the
+ * prediction on synthetic input and the number of predicted voxels per second
+ * is measured. The winning tile size is stored in the preferences so later
+ * runs with the same model, tensor shape and overlap can use it right away.
+ */
+public class TilingAutotuner {
+
+	private static final long[] CANDIDATE_SIZES = { 64, 128, 192, 256, 384, 512, 768, 1024 };
+
+	private static final int REPETITIONS = 2;
+
+	private final PrefService prefService;
+	private final String modelId;
+	private boolean retune = false;
+
+	/**
+	 * @param modelId
+	 *            identifies the model in the stored results, e.g. its path or
+	 *            URL
+	 */
+	public TilingAutotuner( final PrefService prefService, final String modelId ) {
+		this.prefService = prefService;
+		this.modelId = modelId;
+	}
+
+	/**
+	 * Ignore a stored result and benchmark again.
+	 */
+	public void setRetune( final boolean retune ) {
+		this.retune = retune;
+	}
+
+	/**
+	 * Returns the tile size (without padding) to use along every tileable
+	 * dimension. The stored result is used if there is one, otherwise the
+	 * candidates are benchmarked on {@code backend} with as many tiles at the
+	 * same time as it runs concurrently.
+	 *
+	 * @param dims
+	 *            dimensions of the input image
+	 * @param tileable
+	 *            which dimensions can be divided into tiles
+	 * @param planner
+	 *            limits the tile size to its memory budget, can be null. The
+	 *            memory of a candidate is its estimate, it is not measured.
+	 * @param progressWindow
+	 *            logs the results of the candidates
+	 * @return the tile size or 0 if no candidate could be run
+	 */
+	public long getTileSize(
+			final InferenceBackend backend,
+			final int[] mappingIn,
+			final long[] dims,
+			final boolean[] tileable,
+			final int blockMultiple,
+			final int overlap,
+			final TilePlanner planner,
+			final CSBDeepProgress progressWindow ) {
+
+		final String key = getPreferenceKey( mappingIn, dims, tileable, blockMultiple, overlap );
+		if ( !retune && prefService != null ) {
+			final String stored = prefService.get( key, "" );
+			if ( !stored.isEmpty() ) {
+				progressWindow.addLog( "Autotune: using the stored tile size " + stored + " of this model.." );
+				return fitBudget(
+						Long.parseLong( stored ),
+						dims,
+						tileable,
+						blockMultiple,
+						overlap,
+						planner,
+						progressWindow );
+			}
+		}
+
+		long maxSize = 0;
+		for ( int d = 0; d < dims.length; d++ ) {
+			if ( tileable[ d ] ) {
+				maxSize = Math.max( maxSize, roundUp( dims[ d ], blockMultiple ) );
+			}
+		}
+
+		long bestSize = 0;
+		double bestThroughput = 0;
+		for ( final long candidate : getCandidates( blockMultiple, maxSize ) ) {
+			final long[] tileDims = getTileDims( dims, tileable, candidate, blockMultiple, overlap );
+			if ( !fits( tileDims, planner ) ) {
+				progressWindow.addLog( "Autotune: tile size " + candidate + " exceeds the memory budget" );
+				break;
+			}
+			long coreVoxels = 1;
+			for ( int d = 0; d < dims.length; d++ ) {
+				coreVoxels *= tileable[ d ] ? Math.min( candidate, roundUp( dims[ d ], blockMultiple ) ) : dims[ d ];
+			}
+			final double seconds;
+			try {
+				seconds = benchmark( backend, mappingIn, tileDims );
+			} catch ( final Exception exc ) {
+				progressWindow.addLog( "Autotune: tile size " + candidate + " failed: " + exc.getMessage() );
+				break;
+			}
+			final double throughput = coreVoxels * backend.getConcurrency() / seconds;
+			progressWindow.addLog(
+					"Autotune: tile size " + candidate + " " + Arrays.toString( tileDims ) + ": " + ( long ) throughput + " voxels/s" );
+			if ( throughput > bestThroughput ) {
+				bestThroughput = throughput;
+				bestSize = candidate;
+			}
+		}
+
+		if ( bestSize > 0 && prefService != null ) {
+			prefService.put( key, String.valueOf( bestSize ) );
+		}
+		return bestSize;
+	}
+
+	/**
+	 * Shrinks a stored tile size until a tile fits into the memory budget of
+	 * {@code planner}, e.g. if the budget was lowered since the size was
+	 * tuned.
+	 */
+	private static long fitBudget(
+			final long size,
+			final long[] dims,
+			final boolean[] tileable,
+			final int blockMultiple,
+			final int overlap,
+			final TilePlanner planner,
+			final CSBDeepProgress progressWindow ) {
+		long fitted = size;
+		while ( fitted > blockMultiple && !fits( getTileDims( dims, tileable, fitted, blockMultiple, overlap ), planner ) ) {
+			fitted -= blockMultiple;
+		}
+		if ( fitted != size ) {
+			progressWindow.addLog( "Autotune: tile size " + size + " exceeds the memory budget, using " + fitted );
+		}
+		return fitted;
+	}
+
+	private static boolean fits( final long[] tileDims, final TilePlanner planner ) {
+		return planner == null || planner.estimateTileBytes( tileDims ) <= planner.getMemoryBudget();
+	}
+
+	/**
+	 * The dimensions of a padded tile of the given size. Like in
+	 * {@link TiledPrediction}, only dimensions split into several tiles get
+	 * padded.
+	 */
+	private static long[] getTileDims(
+			final long[] dims,
+			final boolean[] tileable,
+			final long size,
+			final int blockMultiple,
+			final int overlap ) {
+		final long[] tileDims = new long[ dims.length ];
+		for ( int d = 0; d < dims.length; d++ ) {
+			final long full = roundUp( dims[ d ], blockMultiple );
+			if ( tileable[ d ] ) {
+				tileDims[ d ] = size < full ? size + 2 * overlap : full;
+			} else {
+				tileDims[ d ] = full;
+			}
+		}
+		return tileDims;
+	}
+
+	/**
+	 * Runs the backend on random tiles and returns the mean time in seconds
+	 * for one tile per concurrent run, excluding a first warm-up run.
+	 */
+	private static double benchmark(
+			final InferenceBackend backend,
+			final int[] mappingIn,
+			final long[] tileDims ) throws Exception {
+		final ArrayImg< FloatType, FloatArray > tile = ArrayImgs.floats( tileDims );
+		final Random random = new Random( 42 );
+		for ( final FloatType t : tile ) {
+			t.set( random.nextFloat() );
+		}
+		final long[] shape = DatasetConverter.getShape( tile, mappingIn );
+		final int concurrency = backend.getConcurrency();
+		final TensorBufferPool buffers = new TensorBufferPool( concurrency );
+		final List< ByteBuffer > inputs = new ArrayList<>();
+		for ( int i = 0; i < concurrency; i++ ) {
+			final ByteBuffer input = buffers.acquire( backend.getInputDataType(), shape );
+			DatasetConverter.datasetToBuffer( tile, mappingIn, input, backend.getInputDataType(), 0 );
+			inputs.add( input );
+		}
+		final ExecutorService pool = Executors.newFixedThreadPool( concurrency );
+		try {
+			long time = 0;
+			for ( int i = 0; i <= REPETITIONS; i++ ) {
+				final long start = System.nanoTime();
+				final List< Future< ? > > runs = new ArrayList<>();
+				for ( final ByteBuffer input : inputs ) {
+					runs.add( pool.submit( () -> {
+						final InferenceBackend.Output output = backend.run( shape, input );
+						if ( output != null ) {
+							output.close();
+						}
+						return null;
+					} ) );
+				}
+				for ( final Future< ? > run : runs ) {
+					run.get();
+				}
+				if ( i > 0 ) {
+					time += System.nanoTime() - start;
+				}
+			}
+			return time / 1e9 / REPETITIONS;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static List< Long > getCandidates( final int blockMultiple, final long maxSize ) {
+		final List< Long > candidates = new ArrayList<>();
+		for ( final long size : CANDIDATE_SIZES ) {
+			final long candidate = Math.min( roundUp( size, blockMultiple ), maxSize );
+			if ( candidates.contains( candidate ) ) continue;
+			candidates.add( candidate );
+			if ( candidate >= maxSize ) break;
+		}
+		return candidates;
+	}
+
+	private static long roundUp( final long size, final int multiple ) {
+		return ( long ) Math.ceil( size / ( double ) multiple ) * multiple;
+	}
+
+	/**
+	 * The stored result is specific to the model, the machine, the overlap
+	 * and the shape class of the input tensor: its rank, which tensor
+	 * dimensions get tiled and the size of the others.
+	 */
+	private String getPreferenceKey(
+			final int[] mappingIn,
+			final long[] dims,
+			final boolean[] tileable,
+			final int blockMultiple,
+			final int overlap ) {
+		final String[] shapeClass = new String[ mappingIn.length ];
+		Arrays.fill( shapeClass, "1" );
+		for ( int d = 0; d < dims.length && d < mappingIn.length; d++ ) {
+			shapeClass[ mappingIn[ d ] ] = tileable[ d ] ? "t" : String.valueOf( roundUp( dims[ d ], blockMultiple ) );
+		}
+		return "autotune-" + modelId + "-" + String.join( "x", shapeClass ) + "-overlap" + overlap + "-block" +
+				blockMultiple + "-" + getMachineId();
+	}
+
+	/**
+	 * Identifies the machine by its host name, architecture and number of
+	 * cores.
+	 */
+	public static String getMachineId() {
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch ( final UnknownHostException exc ) {
+			host = "unknown";
+		}
+		return host + "-" + System.getProperty( "os.arch" ) + "-" + Runtime.getRuntime().availableProcessors();
+	}
+
+}
@@ -0,0 +1,231 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.imglib2;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.ExtendedRandomAccessibleInterval;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+
+import mpicbg.csbd.normalize.NormalizedView;
+import mpicbg.csbd.normalize.Normalizer;
+
+/**
+ * The part of an {@link ArrayImg} seen through a chain of views. The value at
+ * position {@code x} (relative to the min of the view) is stored at
+ * {@code offset + sum( steps[ d ] * x[ d ] )} of the array.
+ *
+ * Only views which translate, permute, invert or slice dimensions are
+ * resolved. Out of bounds extensions are accepted as long as the view does
+ * not reach outside of the image. A {@link NormalizedView} is resolved to its
+ * source, the normalizer then has to be applied to the values of the array.
+ */
+public class ArrayRegion {
+
+	private final Object array;
+	private final boolean unsigned;
+	private final long offset;
+	private final long[] steps;
+	private final Normalizer< ? > normalizer;
+
+	private ArrayRegion(
+			final Object array,
+			final boolean unsigned,
+			final long offset,
+			final long[] steps,
+			final Normalizer< ? > normalizer ) {
+		this.array = array;
+		this.unsigned = unsigned;
+		this.offset = offset;
+		this.steps = steps;
+		this.normalizer = normalizer;
+	}
+
+	/**
+	 * @return a float[], double[], int[], short[] or byte[] array
+	 */
+	public Object getArray() {
+		return array;
+	}
+
+	/**
+	 * @return true if the integer values of the array are unsigned
+	 */
+	public boolean isUnsigned() {
+		return unsigned;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long[] getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return the normalizer to apply to the values of the array or null
+	 */
+	public Normalizer< ? > getNormalizer() {
+		return normalizer;
+	}
+
+	/**
+	 * @return the region of the array behind {@code view} or null if the view
+	 *         can not be resolved to an array of a supported type
+	 */
+	public static ArrayRegion resolve( final RandomAccessibleInterval< ? > view ) {
+
+		// For each dimension of the current level: the view dimension it is
+		// taken from (-1 if constant), the direction and the offset
+		final int n = view.numDimensions();
+		int[] component = new int[ n ];
+		int[] sign = new int[ n ];
+		long[] shift = new long[ n ];
+		for ( int d = 0; d < n; d++ ) {
+			component[ d ] = d;
+			sign[ d ] = 1;
+			shift[ d ] = view.min( d );
+		}
+
+		Normalizer< ? > normalizer = null;
+		RandomAccessible< ? > current = view;
+		while ( true ) {
+			if ( current instanceof NormalizedView ) {
+				if ( normalizer != null ) { return null; }
+				normalizer = ( ( NormalizedView< ? > ) current ).getNormalizer();
+				current = ( ( NormalizedView< ? > ) current ).getNormalizedSource();
+			} else if ( current instanceof IntervalView ) {
+				current = ( ( IntervalView< ? > ) current ).getSource();
+			} else if ( current instanceof MixedTransformView ) {
+				final MixedTransformView< ? > mixed = ( MixedTransformView< ? > ) current;
+				final MixedTransform transform = mixed.getTransformToSource();
+				final int m = transform.numTargetDimensions();
+				final int[] sourceComponent = new int[ m ];
+				final int[] sourceSign = new int[ m ];
+				final long[] sourceShift = new long[ m ];
+				for ( int d = 0; d < m; d++ ) {
+					sourceShift[ d ] = transform.getTranslation( d );
+					if ( transform.getComponentZero( d ) ) {
+						sourceComponent[ d ] = -1;
+						continue;
+					}
+					final int t = transform.getComponentMapping( d );
+					final int s = transform.getComponentInversion( d ) ? -1 : 1;
+					sourceComponent[ d ] = component[ t ];
+					sourceSign[ d ] = s * sign[ t ];
+					sourceShift[ d ] += s * shift[ t ];
+				}
+				component = sourceComponent;
+				sign = sourceSign;
+				shift = sourceShift;
+				current = mixed.getSource();
+			} else if ( current instanceof ExtendedRandomAccessibleInterval ) {
+				final RandomAccessibleInterval< ? > source =
+						( ( ExtendedRandomAccessibleInterval< ?, ? > ) current ).getSource();
+				if ( !isInside( view, component, sign, shift, source ) ) { return null; }
+				current = source;
+			} else if ( current instanceof ImgPlus ) {
+				current = ( ( ImgPlus< ? > ) current ).getImg();
+			} else if ( current instanceof ArrayImg ) {
+				return create( view, component, sign, shift, ( ArrayImg< ?, ? > ) current, normalizer );
+			} else {
+				return null;
+			}
+		}
+	}
+
+	private static ArrayRegion create(
+			final Interval view,
+			final int[] component,
+			final int[] sign,
+			final long[] shift,
+			final ArrayImg< ?, ? > img,
+			final Normalizer< ? > normalizer ) {
+
+		// Types with one array element per pixel
+		final Object type = img.firstElement();
+		final boolean unsigned =
+				type instanceof UnsignedByteType || type instanceof UnsignedShortType || type instanceof UnsignedIntType;
+		final boolean signed = type instanceof FloatType || type instanceof DoubleType || type instanceof ByteType ||
+				type instanceof ShortType || type instanceof IntType;
+		if ( !signed && !unsigned ) { return null; }
+		final Object data = img.update( null );
+		if ( !( data instanceof ArrayDataAccess ) ) { return null; }
+		final Object array = ( ( ArrayDataAccess< ? > ) data ).getCurrentStorageArray();
+		if ( !isInside( view, component, sign, shift, img ) ) { return null; }
+
+		long offset = 0;
+		long stride = 1;
+		final long[] steps = new long[ view.numDimensions() ];
+		for ( int d = 0; d < img.numDimensions(); d++ ) {
+			offset += stride * shift[ d ];
+			if ( component[ d ] >= 0 ) {
+				steps[ component[ d ] ] += stride * sign[ d ];
+			}
+			stride *= img.dimension( d );
+		}
+		return new ArrayRegion( array, unsigned, offset, steps, normalizer );
+	}
+
+	/**
+	 * Checks if the view, mapped to the current level, lies inside of the
+	 * given interval.
+	 */
+	private static boolean isInside(
+			final Interval view,
+			final int[] component,
+			final int[] sign,
+			final long[] shift,
+			final Interval interval ) {
+		if ( component.length != interval.numDimensions() ) { return false; }
+		for ( int d = 0; d < component.length; d++ ) {
+			final long size = component[ d ] < 0 ? 1 : view.dimension( component[ d ] );
+			final long a = shift[ d ];
+			final long b = shift[ d ] + ( sign[ d ] < 0 ? -1 : 1 ) * ( size - 1 );
+			if ( Math.min( a, b ) < interval.min( d ) || Math.max( a, b ) > interval.max( d ) ) { return false; }
+		}
+		return true;
+	}
+
+}
@@ -49,6 +49,9 @@ import net.imglib2.view.Views;
  * <em>n</em>-dimensional blocks of user defined size. Border blocks may have
  * smaller sizes.
  *
+ * Each block can be padded by an overlap. The padding on the faces at the
+ * image border can differ from the one between neighboring blocks.
+ *
  * @param <T>
  *            the pixel type
  *
@@ -73,12 +76,19 @@ public class TiledView< T > extends AbstractInterval implements RandomAccessible
 
 	private final long[] overlap;
 
+	private final long[] borderOverlap;
+
 	public TiledView( final RandomAccessibleInterval< T > source, final long... blockSize )
 	{
 		this(source, blockSize, new long[blockSize.length]);
 	}
 
 	public TiledView( final RandomAccessibleInterval< T > source, final long[] blockSize, final long[] overlap)
+	{
+		this( source, blockSize, overlap, overlap );
+	}
+
+	public TiledView( final RandomAccessibleInterval< T > source, final long[] blockSize, final long[] overlap, final long[] borderOverlap )
 	{
 		super( source.numDimensions() );
 
@@ -94,6 +104,7 @@ public class TiledView< T > extends AbstractInterval implements RandomAccessible
 			max[ d ] = ( source.dimension( d ) - 1 ) / blockSize[ d ];
 		}
 		this.overlap = overlap;
+		this.borderOverlap = borderOverlap;
 	}
 
 	public RandomAccessibleInterval< T > getSource()
@@ -111,10 +122,33 @@ public class TiledView< T > extends AbstractInterval implements RandomAccessible
 		return overlap.clone();
 	}
 
+	public long[] getBorderOverlap()
+	{
+		return borderOverlap.clone();
+	}
+
+	/**
+	 * @return the padding in front of the block at {@code position} in
+	 *         dimension {@code d}
+	 */
+	public long getOverlapBefore( final int d, final long position )
+	{
+		return position > 0 ? overlap[ d ] : borderOverlap[ d ];
+	}
+
+	/**
+	 * @return the padding behind the block at {@code position} in dimension
+	 *         {@code d}
+	 */
+	public long getOverlapAfter( final int d, final long position )
+	{
+		return position < max[ d ] ? overlap[ d ] : borderOverlap[ d ];
+	}
+
 	@Override
 	public TiledViewRandomAccess< T > randomAccess()
 	{
-		return new TiledViewRandomAccess<>( source, blockSize, max, overlap);
+		return new TiledViewRandomAccess<>( source, blockSize, max, overlap, borderOverlap );
 	}
 
 	@Override
@@ -131,6 +165,8 @@ public class TiledView< T > extends AbstractInterval implements RandomAccessible
 
 		private final long[] overlap;
 
+		private final long[] borderOverlap;
+
 		private final long[] max;
 
 		private final long[] tempMin;
@@ -138,11 +174,17 @@ public class TiledView< T > extends AbstractInterval implements RandomAccessible
 		private final long[] tempMax;
 
 		public TiledViewRandomAccess( final RandomAccessibleInterval< T > source, final long[] blockSize, final long[] max, final long[] overlap)
+		{
+			this( source, blockSize, max, overlap, overlap );
+		}
+
+		public TiledViewRandomAccess( final RandomAccessibleInterval< T > source, final long[] blockSize, final long[] max, final long[] overlap, final long[] borderOverlap )
 		{
 			super( source.numDimensions() );
 			this.source = source;
 			this.blockSize = blockSize;
 			this.overlap = overlap;
+			this.borderOverlap = borderOverlap;
 			this.max = max;
 			tempMin = new long[ n ];
 			tempMax = new long[ n ];
@@ -154,6 +196,7 @@ public class TiledView< T > extends AbstractInterval implements RandomAccessible
 			source = ra.source;
 			blockSize = ra.blockSize;
 			overlap = ra.overlap;
+			borderOverlap = ra.borderOverlap;
 			max = ra.max;
 			tempMin = ra.tempMin.clone();
 			tempMax = ra.tempMax.clone();
@@ -173,9 +216,9 @@ public class TiledView< T > extends AbstractInterval implements RandomAccessible
 				{
 					tempMax[ d ] = source.max( d );
 				}
-				// Add overlap
-				tempMin[ d ] -= overlap[ d ];
-				tempMax[ d ] += overlap[ d ];
+				// Add overlap, border faces use the border overlap
+				tempMin[ d ] -= position[ d ] > 0 ? overlap[ d ] : borderOverlap[ d ];
+				tempMax[ d ] += position[ d ] < max[ d ] ? overlap[ d ] : borderOverlap[ d ];
 			}
 			// TODO: [Review] Creating multiple views per call probably isn't
 			// what we want.
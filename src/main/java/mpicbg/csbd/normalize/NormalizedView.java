@@ -0,0 +1,65 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.normalize;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.read.ConvertedRandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Normalizes the values of the source image on access. Only the parts of the
+ * image which are read, e.g. the tiles in flight, ever exist as float data.
+ * Without a normalizer the values are only converted to float.
+ */
+public class NormalizedView< T extends RealType< T > > extends ConvertedRandomAccessibleInterval< T, FloatType > {
+
+	private final Normalizer< T > normalizer;
+
+	public NormalizedView( final RandomAccessibleInterval< T > source, final Normalizer< T > normalizer ) {
+		super(
+				source,
+				normalizer == null ? ( in, out ) -> out.set( in.getRealFloat() ) : ( in, out ) -> out.set(
+						normalizer.normalize( in.getRealFloat() ) ),
+				new FloatType() );
+		this.normalizer = normalizer;
+	}
+
+	public RandomAccessibleInterval< T > getNormalizedSource() {
+		return sourceInterval;
+	}
+
+	/**
+	 * @return the normalizer or null if the values are not normalized
+	 */
+	public Normalizer< T > getNormalizer() {
+		return normalizer;
+	}
+
+}
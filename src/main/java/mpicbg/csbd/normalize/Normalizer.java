@@ -48,4 +48,6 @@ public interface Normalizer< T extends RealType< T > > {
 	float normalize( float val );
 
 	Img< FloatType > normalizeImage( RandomAccessibleInterval< T > im );
+
+	NormalizedView< T > normalizeView( RandomAccessibleInterval< T > im );
 }
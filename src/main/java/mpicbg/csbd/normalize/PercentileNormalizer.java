@@ -28,6 +28,8 @@
  */
 package mpicbg.csbd.normalize;
 
+import java.util.Arrays;
+
 import net.imagej.Dataset;
 import net.imglib2.Cursor;
 import net.imglib2.IterableInterval;
@@ -36,9 +38,9 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.Util;
 
 import org.scijava.ui.UIService;
 
@@ -61,6 +63,16 @@ public class PercentileNormalizer< T extends RealType< T > > implements Normaliz
 
 	protected float percentileBottomVal, percentileTopVal;
 
+	/**
+	 * Number of bins of the histogram the percentiles are computed from.
+	 */
+	protected static final int HISTOGRAM_BINS = 1 << 16;
+
+	/**
+	 * Maximum number of values collected to find a percentile inside its bin.
+	 */
+	protected static final int MAX_REFINED_VALUES = 1 << 22;
+
 	protected float factor;
 
 	@Override
@@ -103,33 +115,100 @@ public class PercentileNormalizer< T extends RealType< T > > implements Normaliz
 		}
 	}
 
+	/**
+	 * Computes the percentiles from a histogram streamed over the input, so
+	 * no copy of the image is needed. Integer images with up to
+	 * {@link #HISTOGRAM_BINS} different values are counted exactly. Otherwise
+	 * the values of the bins holding the percentiles are collected in a last
+	 * pass, as long as there are at most {@link #MAX_REFINED_VALUES} of them.
+	 */
 	protected static < T extends RealType< T > > float[] percentiles( final IterableInterval< T > d, final float[] percentiles ) {
-		final Cursor< T > cursor = d.cursor();
-		int items = 1;
-		int i = 0;
-		for ( ; i < d.numDimensions(); i++ ) {
-			items *= d.dimension( i );
+		final float[] res = new float[ percentiles.length ];
+		final long items = d.size();
+		if ( items == 0 ) { return res; }
+
+		double lo = Double.POSITIVE_INFINITY;
+		double hi = Double.NEGATIVE_INFINITY;
+		for ( final T t : d ) {
+			final double val = t.getRealDouble();
+			if ( val < lo ) lo = val;
+			if ( val > hi ) hi = val;
 		}
-		final float[] values = new float[ items ];
-		i = 0;
-		while ( cursor.hasNext() ) {
-			cursor.fwd();
-			values[ i ] = cursor.get().getRealFloat();
-			i++;
+		if ( lo == hi ) {
+			Arrays.fill( res, ( float ) lo );
+			return res;
 		}
 
-		Util.quicksort( values );
+		final boolean exact = d.firstElement() instanceof IntegerType && hi - lo < HISTOGRAM_BINS;
+		final int bins = exact ? ( int ) ( hi - lo ) + 1 : HISTOGRAM_BINS;
+		final double scale = exact ? 1 : bins / ( hi - lo );
+		final long[] histogram = new long[ bins ];
+		for ( final T t : d ) {
+			histogram[ bin( t.getRealDouble(), lo, scale, bins ) ]++;
+		}
 
-		final float[] res = new float[ percentiles.length ];
-		for ( i = 0; i < percentiles.length; i++ ) {
-			res[ i ] = values[ Math.min(
-					values.length - 1,
-					Math.max( 0, Math.round( ( values.length - 1 ) * percentiles[ i ] ) ) ) ];
+		// Find the bin of each percentile and its rank inside the bin
+		final int[] binOf = new int[ percentiles.length ];
+		final long[] rankInBin = new long[ percentiles.length ];
+		for ( int i = 0; i < percentiles.length; i++ ) {
+			final long rank = Math.min( items - 1, Math.max( 0, Math.round( ( items - 1 ) * ( double ) percentiles[ i ] ) ) );
+			long before = 0;
+			int b = 0;
+			while ( before + histogram[ b ] <= rank ) {
+				before += histogram[ b ];
+				b++;
+			}
+			binOf[ i ] = b;
+			rankInBin[ i ] = rank - before;
+			res[ i ] = ( float ) ( exact ? lo + b : lo + ( b + ( rankInBin[ i ] + 0.5 ) / histogram[ b ] ) / scale );
 		}
+		if ( exact ) { return res; }
 
+		// Collect the values of the bins holding the percentiles, percentiles
+		// in the same bin share the collected values
+		final float[][] values = new float[ percentiles.length ][];
+		final int[] filled = new int[ percentiles.length ];
+		boolean refine = false;
+		for ( int i = 0; i < percentiles.length; i++ ) {
+			if ( histogram[ binOf[ i ] ] <= MAX_REFINED_VALUES && indexOf( binOf, binOf[ i ] ) == i ) {
+				values[ i ] = new float[ ( int ) histogram[ binOf[ i ] ] ];
+				refine = true;
+			}
+		}
+		if ( !refine ) { return res; }
+		for ( final T t : d ) {
+			final double val = t.getRealDouble();
+			final int b = bin( val, lo, scale, bins );
+			for ( int i = 0; i < percentiles.length; i++ ) {
+				if ( values[ i ] != null && binOf[ i ] == b ) {
+					values[ i ][ filled[ i ]++ ] = ( float ) val;
+					break;
+				}
+			}
+		}
+		for ( int i = 0; i < percentiles.length; i++ ) {
+			final float[] bin = values[ indexOf( binOf, binOf[ i ] ) ];
+			if ( bin != null ) {
+				if ( values[ i ] != null ) {
+					Arrays.sort( bin );
+				}
+				res[ i ] = bin[ ( int ) rankInBin[ i ] ];
+			}
+		}
 		return res;
 	}
 
+	private static int indexOf( final int[] array, final int value ) {
+		for ( int i = 0; i < array.length; i++ ) {
+			if ( array[ i ] == value ) { return i; }
+		}
+		return -1;
+	}
+
+	private static int bin( final double val, final double lo, final double scale, final int bins ) {
+		return Math.min( bins - 1, ( int ) ( ( val - lo ) * scale ) );
+	}
+
 	@Override
 	public boolean isActive() {
 		return normalizeInput;
@@ -159,4 +238,25 @@ public class PercentileNormalizer< T extends RealType< T > > implements Normaliz
 		return output;
 	}
 
+	/**
+	 * Normalizes lazily. The view keeps the current normalization values, later
+	 * calls to {@link #prepareNormalization(IterableInterval)} do not affect
+	 * it. If normalization is turned off, the view only converts to float.
+	 */
+	@Override
+	public NormalizedView< T > normalizeView( final RandomAccessibleInterval< T > im ) {
+		if ( !normalizeInput ) { return new NormalizedView<>( im, null ); }
+		final PercentileNormalizer< T > normalizer = new PercentileNormalizer<>();
+		normalizer.normalizeInput = normalizeInput;
+		normalizer.percentileBottom = percentileBottom;
+		normalizer.percentileTop = percentileTop;
+		normalizer.min = min;
+		normalizer.max = max;
+		normalizer.clamp = clamp;
+		normalizer.percentileBottomVal = percentileBottomVal;
+		normalizer.percentileTopVal = percentileTopVal;
+		normalizer.factor = factor;
+		return new NormalizedView<>( im, normalizer );
+	}
+
 }
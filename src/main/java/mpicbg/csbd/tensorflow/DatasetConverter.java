@@ -28,32 +28,282 @@
  */
 package mpicbg.csbd.tensorflow;
 
-import net.imagej.tensorflow.Tensors;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.transform.integer.MixedTransform;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.MixedTransformView;
 import net.imglib2.view.Views;
 
+import org.tensorflow.DataType;
 import org.tensorflow.Tensor;
 
+import mpicbg.csbd.imglib2.ArrayRegion;
+import mpicbg.csbd.normalize.NormalizedView;
+
 public class DatasetConverter {
 
-	public static RandomAccessibleInterval< FloatType > tensorToDataset( final Tensor tensor, final int[] mapping, final boolean dropSingletonDims ) {
+	/**
+	 * Wraps the values of a tensor stored in row-major order in
+	 * {@code array} into an image. Tensor dimension {@code mapping[ i ]}
+	 * becomes image dimension i.
+	 */
+	public static RandomAccessibleInterval< FloatType > arrayToDataset(
+			final float[] array,
+			final long[] shape,
+			final int[] mapping,
+			final boolean dropSingletonDims ) {
 
-		final RandomAccessibleInterval< FloatType > outImg = Tensors.imgFloat( tensor, mapping );
+		// The tensor is stored in row-major order, so the array image has the
+		// tensor dimensions in reverse order. Image dimension i is tensor
+		// dimension mapping[ i ].
+		final int n = shape.length;
+		final long[] imgDims = new long[ n ];
+		final long[] dims = new long[ n ];
+		final int[] component = new int[ n ];
+		for ( int i = 0; i < n; i++ ) {
+			imgDims[ n - 1 - i ] = shape[ i ];
+			dims[ i ] = shape[ mapping[ i ] ];
+			component[ n - 1 - mapping[ i ] ] = i;
+		}
+		final MixedTransform transform = new MixedTransform( n, n );
+		transform.setComponentMapping( component );
+		final RandomAccessibleInterval< FloatType > outImg = Views.interval(
+				new MixedTransformView<>( ArrayImgs.floats( array, imgDims ), transform ),
+				new FinalInterval( dims ) );
 		return dropSingletonDims ? Views.dropSingletonDimensions( outImg ) : outImg;
 	}
 
-	public static Tensor datasetToTensor(
-			RandomAccessibleInterval< FloatType > image,
-			final int[] mapping ) {
+	/**
+	 * Copies {@code source} into {@code target} in bulk if both are backed by
+	 * float arrays, e.g. the core of a tile wrapped with
+	 * {@link #arrayToDataset(float[], long[], int[], boolean)} into its region
+	 * of the output image. Both need to have the same dimensions. At most
+	 * {@code threads} threads copy, all available cores if smaller than one.
+	 *
+	 * @return false if nothing was copied because one of the images is not
+	 *         backed by a float array
+	 */
+	public static boolean writeToRegion(
+			final RandomAccessibleInterval< FloatType > source,
+			final RandomAccessibleInterval< FloatType > target,
+			final int threads ) {
 
-		// Add dimensions until it fits the input tensor
-		while ( image.numDimensions() < mapping.length ) {
-			image = Views.addDimension( image, 0, 0 );
+		final ArrayRegion src = ArrayRegion.resolve( source );
+		if ( src == null || src.getNormalizer() != null || !( src.getArray() instanceof float[] ) ) { return false; }
+		final ArrayRegion dst = ArrayRegion.resolve( target );
+		if ( dst == null || dst.getNormalizer() != null || !( dst.getArray() instanceof float[] ) ) { return false; }
+
+		StridedCopy.copy(
+				( float[] ) src.getArray(),
+				( int ) src.getOffset(),
+				src.getSteps(),
+				( float[] ) dst.getArray(),
+				( int ) dst.getOffset(),
+				dst.getSteps(),
+				Intervals.dimensionsAsLongArray( target ),
+				threads );
+		return true;
+	}
+
+	/**
+	 * @return the shape of the tensor holding the image. Image dimension i
+	 *         becomes tensor dimension {@code mapping[ i ]}, missing
+	 *         dimensions are added with size one.
+	 */
+	public static long[] getShape( final RandomAccessibleInterval< FloatType > image, final int[] mapping ) {
+		if ( image.numDimensions() > mapping.length ) { throw new IllegalArgumentException(
+				"Image has more dimensions than the tensor." ); }
+		final long[] shape = new long[ mapping.length ];
+		for ( int i = 0; i < mapping.length; i++ ) {
+			shape[ mapping[ i ] ] = i < image.numDimensions() ? image.dimension( i ) : 1;
 		}
+		return shape;
+	}
 
-		// Create the tensor
-		return Tensors.tensor( image, mapping );
+	/**
+	 * Fills {@code buffer} from its position with the image in the layout of
+	 * the tensor of shape {@link #getShape(RandomAccessibleInterval, int[])},
+	 * using at most {@code threads} threads, all available cores if smaller
+	 * than one.
+	 */
+	public static void datasetToBuffer(
+			final RandomAccessibleInterval< FloatType > image,
+			final int[] mapping,
+			final ByteBuffer buffer,
+			final DataType type,
+			final int threads ) {
+		final long[] shape = getShape( image, mapping );
+		final TensorTarget target = TensorTarget.create( buffer, type );
+		if ( !copyArrayRegion( image, mapping, shape, target, threads ) ) {
+			copy( image, mapping, shape, target, threads );
+		}
+	}
+
+	static Tensor createTensor( final DataType type, final long[] shape, final ByteBuffer bytes ) {
+		if ( type == DataType.FLOAT ) { return Tensor.create( shape, bytes.asFloatBuffer() ); }
+		return Tensor.create( type, shape, bytes );
+	}
+
+	/**
+	 * @return the shape of the tensor holding several images of the same size
+	 *         stacked along tensor dimension 0, the batch dimension. The
+	 *         images are mapped like in
+	 *         {@link #getShape(RandomAccessibleInterval, int[])} and need to
+	 *         have size one in the image dimension mapped to the batch
+	 *         dimension.
+	 */
+	public static long[] getShape( final List< RandomAccessibleInterval< FloatType > > images, final int[] mapping ) {
+		final long[] shape = getShape( images.get( 0 ), mapping );
+		if ( shape[ 0 ] != 1 ) { throw new IllegalArgumentException( "Images need size one in the batch dimension." ); }
+		for ( final RandomAccessibleInterval< FloatType > image : images ) {
+			if ( !Intervals.equalDimensions( image, images.get( 0 ) ) ) { throw new IllegalArgumentException(
+					"Images of one batch need the same size." ); }
+		}
+		shape[ 0 ] = images.size();
+		return shape;
+	}
+
+	/**
+	 * Fills {@code buffer} from its position with the images stacked along
+	 * the batch dimension, see {@link #getShape(List, int[])}, using at most
+	 * {@code threads} threads per image.
+	 */
+	public static void datasetsToBuffer(
+			final List< RandomAccessibleInterval< FloatType > > images,
+			final int[] mapping,
+			final ByteBuffer buffer,
+			final DataType type,
+			final int threads ) {
+		// Each image fills the next slice of the batch dimension
+		final long[] sliceShape = getShape( images, mapping );
+		sliceShape[ 0 ] = 1;
+		final TensorTarget target = TensorTarget.create( buffer, type );
+		for ( final RandomAccessibleInterval< FloatType > image : images ) {
+			if ( !copyArrayRegion( image, mapping, sliceShape, target, threads ) ) {
+				copy( image, mapping, sliceShape, target, threads );
+			}
+		}
+	}
+
+	/**
+	 * Fast path for images backed by an array. Copies the image in bulk
+	 * instead of walking it element by element through its views. If the
+	 * image is a {@link NormalizedView} of an array image, the raw values are
+	 * normalized while they are copied.
+	 *
+	 * @return false if the image is not backed by an array
+	 */
+	private static boolean copyArrayRegion(
+			final RandomAccessibleInterval< FloatType > image,
+			final int[] mapping,
+			final long[] shape,
+			final TensorTarget target,
+			final int threads ) {
+
+		final ArrayRegion region = ArrayRegion.resolve( image );
+		if ( region == null ) { return false; }
+
+		final long[] steps = new long[ mapping.length ];
+		for ( int i = 0; i < image.numDimensions(); i++ ) {
+			steps[ mapping[ i ] ] = region.getSteps()[ i ];
+		}
+		StridedCopy.copy( region, shape, steps, target, threads );
+		return true;
+	}
+
+	/**
+	 * Generic path, walks the image in tensor order. Large images are split
+	 * into slices of the outermost tensor dimension which are copied in
+	 * parallel by at most {@code threads} threads.
+	 */
+	private static void copy(
+			final RandomAccessibleInterval< FloatType > image,
+			final int[] mapping,
+			final long[] shape,
+			final TensorTarget target,
+			final int threads ) {
+
+		// Image dimension of each tensor dimension, -1 for added dimensions
+		final int[] imageDim = new int[ shape.length ];
+		Arrays.fill( imageDim, -1 );
+		for ( int i = 0; i < image.numDimensions(); i++ ) {
+			imageDim[ mapping[ i ] ] = i;
+		}
+
+		// Only the first outer dimension larger than one is split
+		final int inner = shape.length - 1;
+		int split = 0;
+		while ( split < inner && shape[ split ] == 1 ) {
+			split++;
+		}
+		final int[] outer = split < inner ? new int[] { split } : new int[ 0 ];
+		final long[] strides = new long[ shape.length ];
+		long count = 1;
+		for ( int d = inner; d >= 0; d-- ) {
+			strides[ d ] = count;
+			count *= shape[ d ];
+		}
+
+		final int origin = target.position();
+		StridedCopy.split( outer, shape, count, threads, ( d, from, to ) -> {
+			final long[] start = new long[ shape.length ];
+			final long[] size = shape.clone();
+			final TensorTarget part = target.duplicate();
+			part.position( origin );
+			if ( d >= 0 ) {
+				start[ d ] = from;
+				size[ d ] = to - from;
+				part.position( origin + ( int ) ( from * strides[ d ] ) );
+			}
+			copy( image, imageDim, start, size, part );
+		} );
+		target.position( origin + ( int ) count );
+	}
+
+	/**
+	 * Copies the part of the image starting at tensor position {@code start}.
+	 */
+	private static void copy(
+			final RandomAccessibleInterval< FloatType > image,
+			final int[] imageDim,
+			final long[] start,
+			final long[] size,
+			final TensorTarget target ) {
+
+		final RandomAccess< FloatType > ra = image.randomAccess();
+		final int inner = size.length - 1;
+		final long[] position = new long[ size.length ];
+		while ( true ) {
+			for ( int j = 0; j < size.length; j++ ) {
+				if ( imageDim[ j ] >= 0 ) {
+					ra.setPosition( image.min( imageDim[ j ] ) + start[ j ] + position[ j ], imageDim[ j ] );
+				}
+			}
+			for ( long i = 0; i < size[ inner ]; i++ ) {
+				target.put( ra.get().get() );
+				if ( imageDim[ inner ] >= 0 ) {
+					ra.fwd( imageDim[ inner ] );
+				}
+			}
+			int d = inner - 1;
+			for ( ; d >= 0; d-- ) {
+				if ( ++position[ d ] < size[ d ] ) {
+					break;
+				}
+				position[ d ] = 0;
+			}
+			if ( d < 0 ) {
+				return;
+			}
+		}
 	}
 
 }
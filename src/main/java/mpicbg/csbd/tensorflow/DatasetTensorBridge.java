@@ -40,7 +40,9 @@ import java.util.Set;
 import net.imagej.Dataset;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
+import net.imglib2.type.numeric.RealType;
 
+import org.tensorflow.DataType;
 import org.tensorflow.framework.TensorInfo;
 
 public class DatasetTensorBridge {
@@ -240,6 +242,26 @@ public class DatasetTensorBridge {
 		return outputTensor;
 	}
 
+	/**
+	 * @return the type of the input tensor. Types the TensorFlow Java API can
+	 *         not create (e.g. DT_HALF, DT_UINT16) are fed as float.
+	 */
+	public DataType getInputDataType() {
+		if ( inputTensor != null && inputTensor.getDtype() == org.tensorflow.framework.DataType.DT_UINT8 ) { return DataType.UINT8; }
+		return DataType.FLOAT;
+	}
+
+	/**
+	 * @return true if the input tensor is 8 bit but the values of the dataset
+	 *         do not fit into 0..255, e.g. 16 bit or float images. Their
+	 *         values get rounded and saturated when the tensor is filled.
+	 */
+	public boolean isInputNarrowed() {
+		if ( getInputDataType() != DataType.UINT8 || dataset == null ) { return false; }
+		final RealType< ? > type = dataset.firstElement();
+		return type.getBitsPerPixel() > 8 || type.getMinValue() < 0;
+	}
+
 	public int numDimensions() {
 		return axes.length;
 	}
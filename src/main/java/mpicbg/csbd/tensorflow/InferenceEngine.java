@@ -0,0 +1,589 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.tensorflow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.tensorflow.DataType;
+import org.tensorflow.SavedModelBundle;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+import org.tensorflow.framework.GraphDef;
+import org.tensorflow.framework.MetaGraphDef;
+import org.tensorflow.framework.NodeDef;
+import org.tensorflow.framework.SignatureDef;
+import org.tensorflow.framework.TensorInfo;
+import org.tensorflow.framework.TensorShapeProto;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import mpicbg.csbd.backend.InferenceBackend;
+
+/**
+ * Runs a loaded model on tiles. The engine is created once per model and
+ * resolves the feed and fetch names, shapes and types of the signature up
+ * front, so that running a tile only costs the call into TensorFlow. It can
+ * be used from several threads.
+ *
+ * This is the {@link InferenceBackend} running models with TensorFlow.
+ * {@link #runAll(Input)} fetches all outputs of a multi-head model in one run,
+ * {@link #run(Input)} only the first one.
+ *
+ * The engine runs the model on several tiles at the same time. Each
+ * concurrent run gets its own session with a share of the CPU threads. The sessions are created on
+ * the graph of the loaded model and get a copy of its variables, which is
+ * also how a {@link SessionConfig} gets applied since
+ * {@link SavedModelBundle#load(String, String...)} does not take one. If that
+ * is not possible, the runs share the session of the model and
+ * {@link #getSessionError()} tells why.
+ */
+public class InferenceEngine implements InferenceBackend {
+
+	public static final String DEFAULT_SERVING_SIGNATURE_DEF_KEY = "serving_default";
+
+	private final SavedModelBundle model;
+	private final TensorInfo inputTensorInfo, outputTensorInfo;
+	private final List< TensorInfo > outputTensorInfos;
+	private final String feedName;
+	private final int feedIndex;
+	private final String[] fetchNames;
+	private final int[] fetchIndices;
+	private final long[] inputShape, outputShape;
+	private final DataType inputDataType;
+	private final Set< String > warmedUp = new HashSet<>();
+	private final int concurrency;
+	private final BlockingQueue< Session > idle;
+	private final List< Session > created = new ArrayList<>();
+	private String sessionError;
+
+	public InferenceEngine(
+			final SavedModelBundle model,
+			final TensorInfo inputTensorInfo,
+			final TensorInfo outputTensorInfo,
+			final int concurrency ) {
+		this( model, inputTensorInfo, outputTensorInfo, concurrency, new SessionConfig() );
+	}
+
+	public InferenceEngine(
+			final SavedModelBundle model,
+			final TensorInfo inputTensorInfo,
+			final TensorInfo outputTensorInfo,
+			final int concurrency,
+			final SessionConfig sessionConfig ) {
+		this( model, inputTensorInfo, Collections.singletonList( outputTensorInfo ), concurrency, sessionConfig );
+	}
+
+	/**
+	 * @param outputTensorInfos
+	 *            the outputs fetched by {@link #runAll(Tensor)}, the first one
+	 *            is the output of {@link #run(Tensor)}
+	 */
+	public InferenceEngine(
+			final SavedModelBundle model,
+			final TensorInfo inputTensorInfo,
+			final List< TensorInfo > outputTensorInfos,
+			final int concurrency,
+			final SessionConfig sessionConfig ) {
+		this.model = model;
+		this.inputTensorInfo = inputTensorInfo;
+		this.outputTensorInfo = outputTensorInfos.get( 0 );
+		this.outputTensorInfos = new ArrayList<>( outputTensorInfos );
+		feedName = TensorFlowRunner.getOperationName( inputTensorInfo.getName() );
+		feedIndex = TensorFlowRunner.getOutputIndex( inputTensorInfo.getName() );
+		fetchNames = new String[ outputTensorInfos.size() ];
+		fetchIndices = new int[ outputTensorInfos.size() ];
+		for ( int i = 0; i < fetchNames.length; i++ ) {
+			fetchNames[ i ] = TensorFlowRunner.getOperationName( outputTensorInfos.get( i ).getName() );
+			fetchIndices[ i ] = TensorFlowRunner.getOutputIndex( outputTensorInfos.get( i ).getName() );
+		}
+		inputShape = getShape( inputTensorInfo );
+		outputShape = getShape( outputTensorInfo );
+		inputDataType = inputTensorInfo.getDtype() == org.tensorflow.framework.DataType.DT_UINT8 ? DataType.UINT8
+				: DataType.FLOAT;
+		this.concurrency = Math.max( 1, concurrency );
+		idle = new ArrayBlockingQueue<>( this.concurrency );
+		if ( this.concurrency > 1 || !sessionConfig.isDefault() ) {
+			final byte[] config =
+					( this.concurrency > 1 ? sessionConfig.split( this.concurrency ) : sessionConfig ).toConfigProto();
+			try {
+				for ( int i = 0; i < this.concurrency; i++ ) {
+					created.add( createSession( model, config ) );
+				}
+			} catch ( InvalidProtocolBufferException | RuntimeException exc ) {
+				sessionError = exc.getMessage();
+				closeSessions();
+			}
+		}
+		if ( created.isEmpty() ) {
+			// Concurrent runs on one session are fine for TensorFlow
+			for ( int i = 0; i < this.concurrency; i++ ) {
+				idle.add( model.session() );
+			}
+		} else {
+			idle.addAll( created );
+		}
+	}
+
+	/**
+	 * Runs the model on one tile, waits if all sessions are busy.
+	 *
+	 * @return the output tensor or null if it has no dimensions
+	 */
+	public Tensor run( final Tensor input ) throws InterruptedException {
+		return run( input, ( RunProfile ) null );
+	}
+
+	private Tensor run( final Tensor input, final RunProfile profile ) throws InterruptedException {
+		final List< Tensor > outputs = run( input, 1, profile );
+		final Tensor output = outputs.get( 0 );
+		close( outputs.subList( 1, outputs.size() ) );
+		if ( output.numDimensions() == 0 ) {
+			output.close();
+			TensorFlowRunner.showError( "Output tensor has no dimensions" );
+			return null;
+		}
+		return output;
+	}
+
+	@Override
+	public Input prepare( final long[] shape, final ByteBuffer input ) {
+		return new TensorInput( DatasetConverter.createTensor( inputDataType, shape, input.slice().order(
+				ByteOrder.nativeOrder() ) ) );
+	}
+
+	@Override
+	public Output run( final Input input ) throws InterruptedException {
+		return run( input, null );
+	}
+
+	private Output run( final Input input, final RunProfile profile ) throws InterruptedException {
+		final Tensor output = run( ( ( TensorInput ) input ).tensor, profile );
+		return output != null ? new TensorOutput( output ) : null;
+	}
+
+	@Override
+	public List< Output > runAll( final Input input ) throws InterruptedException {
+		return runAll( input, null );
+	}
+
+	private List< Output > runAll( final Input input, final RunProfile profile ) throws InterruptedException {
+		final List< Tensor > tensors = run( ( ( TensorInput ) input ).tensor, fetchNames.length, profile );
+		if ( tensors.get( 0 ).numDimensions() == 0 ) {
+			close( tensors );
+			TensorFlowRunner.showError( "Output tensor has no dimensions" );
+			return null;
+		}
+		final List< Output > outputs = new ArrayList<>();
+		for ( final Tensor tensor : tensors ) {
+			outputs.add( new TensorOutput( tensor ) );
+		}
+		return outputs;
+	}
+
+	/**
+	 * Runs the model on one tile and fetches all outputs of the engine in one
+	 * run. The caller has to close the returned tensors, e.g. with
+	 * {@link #close(List)}.
+	 */
+	public List< Tensor > runAll( final Tensor input ) throws InterruptedException {
+		return run( input, fetchNames.length, null );
+	}
+
+	@Override
+	public int getOutputCount() {
+		return fetchNames.length;
+	}
+
+	/**
+	 * Fetches the first {@code outputs} outputs, waits if all sessions are
+	 * busy. The run is traced if a profile is given.
+	 */
+	private List< Tensor > run( final Tensor input, final int outputs, final RunProfile profile )
+			throws InterruptedException {
+		final Session session = idle.take();
+		try {
+			if ( profile == null ) { return fetch( session, input, outputs ); }
+			final long start = System.nanoTime();
+			final Session.Run run = runner( session, input, outputs ).setOptions(
+					RunProfile.FULL_TRACE ).runAndFetchMetadata();
+			profile.add( run.metadata, System.nanoTime() - start );
+			return run.outputs;
+		} finally {
+			idle.put( session );
+		}
+	}
+
+	private List< Tensor > fetch( final Session session, final Tensor input, final int outputs ) {
+		return runner( session, input, outputs ).run();
+	}
+
+	private Session.Runner runner( final Session session, final Tensor input, final int outputs ) {
+		final Session.Runner runner = session.runner().feed( feedName, feedIndex, input );
+		for ( int i = 0; i < outputs; i++ ) {
+			runner.fetch( fetchNames[ i ], fetchIndices[ i ] );
+		}
+		return runner;
+	}
+
+	/**
+	 * Closes all tensors of the list.
+	 */
+	public static void close( final List< Tensor > tensors ) {
+		for ( final Tensor tensor : tensors ) {
+			tensor.close();
+		}
+	}
+
+	/**
+	 * Runs every session once on a tensor of zeros. The first run of a
+	 * session optimizes the graph and allocates its memory, warming up with
+	 * the shape of the tiles keeps this out of the first tile. Does nothing
+	 * for shapes this engine was already warmed up with.
+	 */
+	@Override
+	public void warmUp( final long[] shape ) throws InterruptedException {
+		synchronized ( warmedUp ) {
+			if ( !warmedUp.add( Arrays.toString( shape ) ) ) { return; }
+		}
+		final ByteBuffer zeros = ByteBuffer.allocateDirect( TensorBufferPool.numBytes( inputDataType, shape ) ).order(
+				ByteOrder.nativeOrder() );
+		final Tensor input = inputDataType == DataType.FLOAT ? Tensor.create( shape, zeros.asFloatBuffer() )
+				: Tensor.create( inputDataType, shape, zeros );
+		// Take all sessions so that each of them runs once
+		final List< Session > sessions = new ArrayList<>();
+		try {
+			for ( int i = 0; i < concurrency; i++ ) {
+				sessions.add( idle.take() );
+			}
+			for ( final Session session : new LinkedHashSet<>( sessions ) ) {
+				close( fetch( session, input, 1 ) );
+			}
+		} finally {
+			idle.addAll( sessions );
+			input.close();
+		}
+	}
+
+	/**
+	 * A view of this engine which collects the step stats of its runs in
+	 * {@code profile}. The view shares the sessions of this engine, so one
+	 * prediction can be profiled while others use the engine untraced. Runs
+	 * are traced by TensorFlow, which makes them slower. Warm up runs are not
+	 * traced. Closing the view does not close this engine.
+	 */
+	public InferenceBackend profiled( final RunProfile profile ) {
+		return new InferenceBackend() {
+
+			@Override
+			public int getConcurrency() {
+				return InferenceEngine.this.getConcurrency();
+			}
+
+			@Override
+			public DataType getInputDataType() {
+				return InferenceEngine.this.getInputDataType();
+			}
+
+			@Override
+			public Input prepare( final long[] shape, final ByteBuffer input ) {
+				return InferenceEngine.this.prepare( shape, input );
+			}
+
+			@Override
+			public Output run( final Input input ) throws InterruptedException {
+				return InferenceEngine.this.run( input, profile );
+			}
+
+			@Override
+			public int getOutputCount() {
+				return InferenceEngine.this.getOutputCount();
+			}
+
+			@Override
+			public List< Output > runAll( final Input input ) throws InterruptedException {
+				return InferenceEngine.this.runAll( input, profile );
+			}
+
+			@Override
+			public void warmUp( final long[] shape ) throws InterruptedException {
+				InferenceEngine.this.warmUp( shape );
+			}
+
+			@Override
+			public void close() {}
+
+		};
+	}
+
+	public TensorInfo getInputTensorInfo() {
+		return inputTensorInfo;
+	}
+
+	public TensorInfo getOutputTensorInfo() {
+		return outputTensorInfo;
+	}
+
+	/**
+	 * @return the outputs fetched by {@link #runAll(Tensor)}
+	 */
+	public List< TensorInfo > getOutputTensorInfos() {
+		return Collections.unmodifiableList( outputTensorInfos );
+	}
+
+	/**
+	 * @return the shape of the input of the signature, -1 for unknown sizes
+	 */
+	public long[] getInputShape() {
+		return inputShape.clone();
+	}
+
+	/**
+	 * @return the shape of the output of the signature, -1 for unknown sizes
+	 */
+	public long[] getOutputShape() {
+		return outputShape.clone();
+	}
+
+	/**
+	 * @return the type tiles are fed as, see
+	 *         {@link DatasetTensorBridge#getInputDataType()}
+	 */
+	@Override
+	public DataType getInputDataType() {
+		return inputDataType;
+	}
+
+	@Override
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * @return why the sessions of this engine could not be created with its
+	 *         {@link SessionConfig} and concurrency, null if they could. The
+	 *         engine runs on the session of the model in this case.
+	 */
+	public String getSessionError() {
+		return sessionError;
+	}
+
+	/**
+	 * @return the number of sessions this engine created, each with its own
+	 *         copy of the variables of the model. 0 if it runs on the session
+	 *         of the model.
+	 */
+	public int getCreatedSessionCount() {
+		return created.size();
+	}
+
+	public SavedModelBundle getModel() {
+		return model;
+	}
+
+	@Override
+	public void close() {
+		closeSessions();
+	}
+
+	private void closeSessions() {
+		for ( final Session session : created ) {
+			session.close();
+		}
+		created.clear();
+	}
+
+	/**
+	 * @return the default serving signature of the model, null if it has
+	 *         none
+	 */
+	public static SignatureDef getServingSignature( final SavedModelBundle model ) {
+		try {
+			return MetaGraphDef.parseFrom( model.metaGraphDef() ).getSignatureDefOrDefault(
+					DEFAULT_SERVING_SIGNATURE_DEF_KEY,
+					null );
+		} catch ( final InvalidProtocolBufferException exc ) {
+			return null;
+		}
+	}
+
+	/**
+	 * The outputs of a signature, starting with {@code first}, the one the
+	 * tiles are predicted with.
+	 *
+	 * @param signature
+	 *            the signature of the model, null for only {@code first}
+	 */
+	public static List< TensorInfo > getOutputTensorInfos( final TensorInfo first, final SignatureDef signature ) {
+		final List< TensorInfo > outputs = new ArrayList<>();
+		outputs.add( first );
+		if ( signature != null ) {
+			for ( final TensorInfo output : signature.getOutputsMap().values() ) {
+				if ( !output.getName().equals( first.getName() ) ) {
+					outputs.add( output );
+				}
+			}
+		}
+		return outputs;
+	}
+
+	private static long[] getShape( final TensorInfo info ) {
+		final TensorShapeProto shape = info.getTensorShape();
+		final long[] dims = new long[ shape.getDimCount() ];
+		for ( int i = 0; i < dims.length; i++ ) {
+			dims[ i ] = shape.getDim( i ).getSize();
+		}
+		return dims;
+	}
+
+	/**
+	 * An input tensor as {@link InferenceBackend.Input}.
+	 */
+	private static class TensorInput implements Input {
+
+		private final Tensor tensor;
+
+		TensorInput( final Tensor tensor ) {
+			this.tensor = tensor;
+		}
+
+		@Override
+		public long[] shape() {
+			return tensor.shape();
+		}
+
+		@Override
+		public void close() {
+			tensor.close();
+		}
+
+	}
+
+	/**
+	 * An output tensor as {@link InferenceBackend.Output}.
+	 */
+	private static class TensorOutput implements Output {
+
+		private final Tensor tensor;
+
+		TensorOutput( final Tensor tensor ) {
+			this.tensor = tensor;
+		}
+
+		@Override
+		public long[] shape() {
+			return tensor.shape();
+		}
+
+		@Override
+		public void writeTo( final float[] array ) {
+			tensor.writeTo( FloatBuffer.wrap( array ) );
+		}
+
+		@Override
+		public void close() {
+			tensor.close();
+		}
+
+	}
+
+	/**
+	 * Creates a new session on the graph of the model and copies the values
+	 * of all variables from the session of the model. The values are fed into
+	 * the assign operation of each variable.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the graph contains variables without assign operation,
+	 *             e.g. resource variables
+	 */
+	public static Session createSession( final SavedModelBundle model, final byte[] config )
+			throws InvalidProtocolBufferException {
+
+		final GraphDef graph = GraphDef.parseFrom( model.graph().toGraphDef() );
+		final Set< String > variables = new LinkedHashSet<>();
+		for ( final NodeDef node : graph.getNodeList() ) {
+			if ( node.getOp().equals( "VariableV2" ) || node.getOp().equals( "Variable" ) ) {
+				variables.add( node.getName() );
+			} else if ( node.getOp().equals( "VarHandleOp" ) ) { throw new UnsupportedOperationException(
+					"Resource variable " + node.getName() + " can not be copied." ); }
+		}
+		final Map< String, NodeDef > assigns = new HashMap<>();
+		for ( final NodeDef node : graph.getNodeList() ) {
+			if ( node.getOp().equals( "Assign" ) && node.getInputCount() >= 2 && variables.contains(
+					node.getInput( 0 ) ) && !assigns.containsKey( node.getInput( 0 ) ) ) {
+				assigns.put( node.getInput( 0 ), node );
+			}
+		}
+		if ( assigns.size() < variables.size() ) { throw new UnsupportedOperationException(
+				"Not all variables of the model can be assigned." ); }
+
+		final Session session = new Session( model.graph(), config );
+		if ( variables.isEmpty() ) { return session; }
+
+		final Session.Runner fetch = model.session().runner();
+		for ( final String variable : variables ) {
+			fetch.fetch( variable );
+		}
+		List< Tensor > values = null;
+		try {
+			values = fetch.run();
+			final Session.Runner restore = session.runner();
+			int i = 0;
+			for ( final String variable : variables ) {
+				final NodeDef assign = assigns.get( variable );
+				final String value = assign.getInput( 1 );
+				restore.feed( TensorFlowRunner.getOperationName( value ), TensorFlowRunner.getOutputIndex( value ), values.get( i++ ) );
+				restore.addTarget( assign.getName() );
+			}
+			restore.run();
+		} catch ( final RuntimeException exc ) {
+			session.close();
+			throw exc;
+		} finally {
+			if ( values != null ) {
+				close( values );
+			}
+		}
+		return session;
+	}
+
+}
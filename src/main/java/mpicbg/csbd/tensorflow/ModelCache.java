@@ -0,0 +1,442 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.tensorflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import org.tensorflow.SavedModelBundle;
+import org.tensorflow.framework.AttrValue;
+import org.tensorflow.framework.GraphDef;
+import org.tensorflow.framework.NodeDef;
+import org.tensorflow.framework.TensorShapeProto;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Keeps loaded models for the whole process, so that commands running the
+ * same model again do not load the graph and variables again. Models are
+ * handed out as reference counted {@link Handle}s. Models without handles
+ * stay loaded until the estimated memory of all models exceeds the memory
+ * cap, then the least recently used ones are closed. Models are loaded
+ * outside of the lock of the cache, threads asking for a model which is
+ * being loaded wait for that load. Objects depending on a model, e.g. the
+ * engine running it, can be attached to it and are closed together with the
+ * model. Their memory counts towards the memory cap.
+ */
+public class ModelCache {
+
+	public static final int DEFAULT_MEMORY_CAP_MB = 2048;
+
+	private static final ModelCache instance = new ModelCache( DEFAULT_MEMORY_CAP_MB * 1024L * 1024L );
+
+	/**
+	 * Loads a model that is not in the cache yet.
+	 */
+	public interface Loader {
+
+		SavedModelBundle load() throws IOException;
+
+	}
+
+	// In access order, the least recently used model comes first
+	private final LinkedHashMap< String, Entry > entries = new LinkedHashMap<>( 16, 0.75f, true );
+	private final Map< String, CompletableFuture< Entry > > loading = new HashMap<>();
+	private long memoryCap;
+
+	public ModelCache( final long memoryCap ) {
+		this.memoryCap = memoryCap;
+	}
+
+	/**
+	 * @return the cache shared by all commands
+	 */
+	public static ModelCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The key of a model, see {@link #acquire(String, Loader)}. Local files
+	 * are identified by their absolute path and modification time, so a
+	 * changed model is loaded again.
+	 *
+	 * @param location
+	 *            path or URL of the model
+	 */
+	public static String getKey( final String location, final String tag ) {
+		final File file = new File( location );
+		if ( !file.exists() ) { return location + " " + tag; }
+		return file.getAbsolutePath() + " " + file.lastModified() + " " + tag;
+	}
+
+	/**
+	 * Returns a handle to the model stored under {@code key}, see
+	 * {@link #getKey(String, String)}. The model is loaded with
+	 * {@code loader} if it is not in the cache.
+	 */
+	public Handle acquire( final String key, final Loader loader ) throws IOException {
+		final Handle handle = reference( key, loader );
+		// Other models may not fit next to this one anymore
+		closeEvicted();
+		return handle;
+	}
+
+	private Handle reference( final String key, final Loader loader ) throws IOException {
+		CompletableFuture< Entry > future;
+		final boolean load;
+		synchronized ( this ) {
+			final Entry entry = entries.get( key );
+			if ( entry != null ) { return reference( entry ); }
+			future = loading.get( key );
+			load = future == null;
+			if ( load ) {
+				future = new CompletableFuture<>();
+				loading.put( key, future );
+			}
+		}
+		if ( load ) { return load( key, loader, future ); }
+		// Another thread is loading the model
+		final Entry entry;
+		try {
+			entry = future.get();
+		} catch ( final InterruptedException exc ) {
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted while waiting for model " + key, exc );
+		} catch ( final ExecutionException exc ) {
+			if ( exc.getCause() instanceof IOException ) { throw ( IOException ) exc.getCause(); }
+			if ( exc.getCause() instanceof RuntimeException ) { throw ( RuntimeException ) exc.getCause(); }
+			throw new IOException( exc.getCause() );
+		}
+		synchronized ( this ) {
+			if ( entries.get( key ) == entry ) { return reference( entry ); }
+		}
+		// The model was closed again in the meantime
+		return reference( key, loader );
+	}
+
+	private Handle load( final String key, final Loader loader, final CompletableFuture< Entry > future )
+			throws IOException {
+		try {
+			final SavedModelBundle model = loader.load();
+			final byte[] graphBytes = model.graph().toGraphDef();
+			final long variableBytes = estimateVariableBytes( graphBytes );
+			final Entry entry = new Entry( key, model, graphBytes.length + variableBytes, variableBytes );
+			final Handle handle;
+			synchronized ( this ) {
+				loading.remove( key );
+				entries.put( key, entry );
+				handle = reference( entry );
+			}
+			future.complete( entry );
+			return handle;
+		} catch ( IOException | RuntimeException exc ) {
+			synchronized ( this ) {
+				loading.remove( key );
+			}
+			future.completeExceptionally( exc );
+			throw exc;
+		}
+	}
+
+	private synchronized Handle reference( final Entry entry ) {
+		entry.references++;
+		return new Handle( entry );
+	}
+
+	public void setMemoryCap( final long memoryCap ) {
+		synchronized ( this ) {
+			this.memoryCap = memoryCap;
+		}
+		closeEvicted();
+	}
+
+	public synchronized long getMemoryCap() {
+		return memoryCap;
+	}
+
+	/**
+	 * @return the estimated memory of all loaded models and their
+	 *         attachments in bytes
+	 */
+	public synchronized long getLoadedBytes() {
+		long bytes = 0;
+		for ( final Entry entry : entries.values() ) {
+			bytes += entry.bytes;
+		}
+		return bytes;
+	}
+
+	public synchronized boolean contains( final String key ) {
+		return entries.containsKey( key );
+	}
+
+	/**
+	 * Closes all models without handles.
+	 */
+	public void clear() {
+		final List< Entry > closed = new ArrayList<>();
+		synchronized ( this ) {
+			final Iterator< Entry > iterator = entries.values().iterator();
+			while ( iterator.hasNext() ) {
+				final Entry entry = iterator.next();
+				if ( entry.references == 0 ) {
+					iterator.remove();
+					closed.add( entry );
+				}
+			}
+		}
+		close( closed );
+	}
+
+	private void release( final Entry entry ) {
+		synchronized ( this ) {
+			entry.references--;
+		}
+		closeEvicted();
+	}
+
+	/**
+	 * Removes the least recently used models without handles until the
+	 * loaded models fit into the memory cap and closes them. The models are
+	 * closed outside of the lock, so other threads can use the cache in the
+	 * meantime.
+	 */
+	private void closeEvicted() {
+		final List< Entry > evicted = new ArrayList<>();
+		synchronized ( this ) {
+			long bytes = getLoadedBytes();
+			for ( final Entry entry : entries.values() ) {
+				if ( bytes <= memoryCap ) {
+					break;
+				}
+				if ( entry.references == 0 ) {
+					evicted.add( entry );
+					bytes -= entry.bytes;
+				}
+			}
+			for ( final Entry entry : evicted ) {
+				entries.remove( entry.key );
+			}
+		}
+		close( evicted );
+	}
+
+	private static void close( final List< Entry > closed ) {
+		for ( final Entry entry : closed ) {
+			entry.close();
+		}
+	}
+
+	private static void close( final AutoCloseable attachment ) {
+		try {
+			attachment.close();
+		} catch ( final Exception exc ) {
+			System.out.println( "Can not close " + attachment + ": " + exc.getMessage() );
+		}
+	}
+
+	/**
+	 * Changes the estimated memory of an entry by the memory of an
+	 * attachment and evicts other models if the cap is exceeded.
+	 */
+	private void addBytes( final Entry entry, final long bytes ) {
+		synchronized ( this ) {
+			entry.bytes += bytes;
+		}
+		closeEvicted();
+	}
+
+	/**
+	 * Estimates the memory of the variables of a model from their shapes.
+	 *
+	 * @param graphBytes
+	 *            the serialized graph of the model
+	 */
+	static long estimateVariableBytes( final byte[] graphBytes ) {
+		long bytes = 0;
+		try {
+			for ( final NodeDef node : GraphDef.parseFrom( graphBytes ).getNodeList() ) {
+				if ( !node.getOp().equals( "VariableV2" ) && !node.getOp().equals( "Variable" ) && !node.getOp().equals(
+						"VarHandleOp" ) ) {
+					continue;
+				}
+				final AttrValue shape = node.getAttrMap().get( "shape" );
+				final AttrValue dtype = node.getAttrMap().get( "dtype" );
+				if ( shape == null || dtype == null ) {
+					continue;
+				}
+				long elements = 1;
+				for ( final TensorShapeProto.Dim dim : shape.getShape().getDimList() ) {
+					elements *= Math.max( 1, dim.getSize() );
+				}
+				bytes += elements * TensorBufferPool.getBytesPerElement( dtype.getType() );
+			}
+		} catch ( final InvalidProtocolBufferException exc ) {
+			System.out.println( "Can not estimate the size of the model variables: " + exc.getMessage() );
+		}
+		return bytes;
+	}
+
+	private static class Entry {
+
+		final String key;
+		final SavedModelBundle model;
+		final long variableBytes;
+		final Map< String, AutoCloseable > attachments = new HashMap<>();
+		final Map< String, Long > attachmentBytes = new HashMap<>();
+		// The model and its attachments, guarded by the cache
+		long bytes;
+		int references;
+
+		Entry( final String key, final SavedModelBundle model, final long bytes, final long variableBytes ) {
+			this.key = key;
+			this.model = model;
+			this.bytes = bytes;
+			this.variableBytes = variableBytes;
+		}
+
+		/**
+		 * Closes the attachments and then the model.
+		 */
+		void close() {
+			synchronized ( attachments ) {
+				for ( final AutoCloseable attachment : attachments.values() ) {
+					ModelCache.close( attachment );
+				}
+				attachments.clear();
+				attachmentBytes.clear();
+			}
+			model.close();
+		}
+
+	}
+
+	/**
+	 * A reference to a cached model. The model stays loaded at least until
+	 * the handle is closed.
+	 */
+	public class Handle implements AutoCloseable {
+
+		private Entry entry;
+
+		private Handle( final Entry entry ) {
+			this.entry = entry;
+		}
+
+		public SavedModelBundle getModel() {
+			if ( entry == null ) { throw new IllegalStateException( "Model handle is closed." ); }
+			return entry.model;
+		}
+
+		/**
+		 * @return the estimated memory of the variables of the model in
+		 *         bytes, e.g. to estimate the memory of sessions holding a
+		 *         copy of them
+		 */
+		public long getVariableBytes() {
+			if ( entry == null ) { throw new IllegalStateException( "Model handle is closed." ); }
+			return entry.variableBytes;
+		}
+
+		/**
+		 * Returns the object attached to the model under {@code key}. It is
+		 * created with {@code factory} on first use, shared with all later
+		 * handles of the model and closed when the model is closed. Its
+		 * memory, estimated by {@code bytes}, counts towards the memory cap.
+		 * If no other handle of the model is open, attachments stored under
+		 * other keys belong to earlier runs with other options and are closed
+		 * when a new one is created.
+		 */
+		@SuppressWarnings( "unchecked" )
+		public < A extends AutoCloseable > A getAttachment(
+				final String key,
+				final Supplier< A > factory,
+				final ToLongFunction< A > bytes ) {
+			if ( entry == null ) { throw new IllegalStateException( "Model handle is closed." ); }
+			final List< AutoCloseable > stale = new ArrayList<>();
+			long added = 0;
+			A attachment;
+			// The model is not closed while this handle is open
+			synchronized ( entry.attachments ) {
+				attachment = ( A ) entry.attachments.get( key );
+				if ( attachment == null ) {
+					if ( isOnlyHandle() ) {
+						for ( final Map.Entry< String, AutoCloseable > other : entry.attachments.entrySet() ) {
+							stale.add( other.getValue() );
+							added -= entry.attachmentBytes.get( other.getKey() );
+						}
+						entry.attachments.clear();
+						entry.attachmentBytes.clear();
+					}
+					attachment = factory.get();
+					final long attachmentBytes = bytes.applyAsLong( attachment );
+					entry.attachments.put( key, attachment );
+					entry.attachmentBytes.put( key, attachmentBytes );
+					added += attachmentBytes;
+				}
+			}
+			for ( final AutoCloseable closed : stale ) {
+				ModelCache.close( closed );
+			}
+			if ( added != 0 ) {
+				addBytes( entry, added );
+			}
+			return attachment;
+		}
+
+		private boolean isOnlyHandle() {
+			synchronized ( ModelCache.this ) {
+				return entry.references == 1;
+			}
+		}
+
+		/**
+		 * Releases the model, closing the handle twice has no effect.
+		 */
+		@Override
+		public void close() {
+			if ( entry != null ) {
+				release( entry );
+				entry = null;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,174 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.tensorflow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.tensorflow.framework.DeviceStepStats;
+import org.tensorflow.framework.NodeExecStats;
+import org.tensorflow.framework.RunMetadata;
+import org.tensorflow.framework.RunOptions;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Collects the step stats TensorFlow records for traced runs and sums up the
+ * time spent per operation type. Runs can be added from several threads.
+ */
+public class RunProfile {
+
+	/**
+	 * Serialized {@link RunOptions} asking TensorFlow for a full trace.
+	 */
+	public static final byte[] FULL_TRACE =
+			RunOptions.newBuilder().setTraceLevel( RunOptions.TraceLevel.FULL_TRACE ).build().toByteArray();
+
+	private final Map< String, OpStats > ops = new HashMap<>();
+	private int runs = 0;
+	private long runNanos = 0;
+
+	/**
+	 * Adds the metadata of one traced run.
+	 *
+	 * @param metadata
+	 *            the serialized {@link RunMetadata}
+	 * @param nanos
+	 *            the duration of the run as measured by the caller
+	 */
+	public void add( final byte[] metadata, final long nanos ) {
+		final List< NodeExecStats > nodes = new ArrayList<>();
+		if ( metadata != null ) {
+			try {
+				for ( final DeviceStepStats device : RunMetadata.parseFrom( metadata ).getStepStats().getDevStatsList() ) {
+					// GPU streams are reported once more in total
+					if ( device.getDevice().endsWith( "/stream:all" ) ) {
+						continue;
+					}
+					nodes.addAll( device.getNodeStatsList() );
+				}
+			} catch ( final InvalidProtocolBufferException exc ) {
+				System.out.println( "Can not read run metadata: " + exc.getMessage() );
+			}
+		}
+		synchronized ( this ) {
+			runs++;
+			runNanos += nanos;
+			for ( final NodeExecStats node : nodes ) {
+				final String op = getOpType( node );
+				OpStats stats = ops.get( op );
+				if ( stats == null ) {
+					stats = new OpStats( op );
+					ops.put( op, stats );
+				}
+				stats.calls++;
+				stats.micros += node.getAllEndRelMicros();
+			}
+		}
+	}
+
+	public synchronized int getRuns() {
+		return runs;
+	}
+
+	/**
+	 * @return the total time per operation type in microseconds
+	 */
+	public synchronized Map< String, Long > getMicrosPerOp() {
+		final Map< String, Long > micros = new HashMap<>();
+		for ( final OpStats stats : ops.values() ) {
+			micros.put( stats.op, stats.micros );
+		}
+		return micros;
+	}
+
+	public synchronized void clear() {
+		ops.clear();
+		runs = 0;
+		runNanos = 0;
+	}
+
+	/**
+	 * @return one line per operation type, the most expensive first
+	 */
+	public synchronized List< String > getReport( final int maxOps ) {
+		final List< OpStats > sorted = new ArrayList<>( ops.values() );
+		sorted.sort( ( a, b ) -> Long.compare( b.micros, a.micros ) );
+		long total = 0;
+		for ( final OpStats stats : sorted ) {
+			total += stats.micros;
+		}
+		final List< String > report = new ArrayList<>();
+		report.add( String.format(
+				"Profile of %d run(s), %.1f ms per run, %.1f ms in operations per run",
+				runs,
+				runs > 0 ? runNanos / 1e6 / runs : 0,
+				runs > 0 ? total / 1e3 / runs : 0 ) );
+		report.add( String.format( "%-28s %8s %12s %10s %7s", "operation", "calls", "total ms", "mean us", "share" ) );
+		for ( int i = 0; i < sorted.size() && i < maxOps; i++ ) {
+			final OpStats stats = sorted.get( i );
+			report.add( String.format(
+					"%-28s %8d %12.1f %10.1f %6.1f%%",
+					stats.op,
+					stats.calls,
+					stats.micros / 1e3,
+					stats.micros / ( double ) stats.calls,
+					total > 0 ? 100.0 * stats.micros / total : 0 ) );
+		}
+		return report;
+	}
+
+	/**
+	 * The timeline label of a node reads
+	 * {@code <node_name> = <op_type>(<inputs>)}. Nodes without label are
+	 * reported by name.
+	 */
+	private static String getOpType( final NodeExecStats node ) {
+		final String label = node.getTimelineLabel();
+		final int equals = label.indexOf( " = " );
+		if ( equals < 0 ) { return node.getNodeName(); }
+		final int bracket = label.indexOf( '(', equals );
+		return label.substring( equals + 3, bracket < 0 ? label.length() : bracket ).trim();
+	}
+
+	private static class OpStats {
+
+		final String op;
+		int calls;
+		long micros;
+
+		OpStats( final String op ) {
+			this.op = op;
+		}
+
+	}
+
+}
@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.tensorflow;
+
+import org.tensorflow.framework.ConfigProto;
+import org.tensorflow.framework.GraphOptions;
+import org.tensorflow.framework.OptimizerOptions;
+
+/**
+ * Session options passed to TensorFlow as serialized {@link ConfigProto}.
+ * Values of 0 and the default optimizer level keep the TensorFlow defaults.
+ */
+public class SessionConfig {
+
+	public static final String OPTIMIZER_DEFAULT = "Default";
+	public static final String OPTIMIZER_L1 = "L1";
+	public static final String OPTIMIZER_L0 = "L0 (no optimization)";
+
+	private int intraOpThreads = 0;
+	private int interOpThreads = 0;
+	private boolean usePerSessionThreads = false;
+	private String optimizerLevel = OPTIMIZER_DEFAULT;
+
+	public SessionConfig() {}
+
+	public SessionConfig(
+			final int intraOpThreads,
+			final int interOpThreads,
+			final boolean usePerSessionThreads,
+			final String optimizerLevel ) {
+		this.intraOpThreads = intraOpThreads;
+		this.interOpThreads = interOpThreads;
+		this.usePerSessionThreads = usePerSessionThreads;
+		this.optimizerLevel = optimizerLevel;
+	}
+
+	/**
+	 * @return true if all options keep the TensorFlow defaults
+	 */
+	public boolean isDefault() {
+		return intraOpThreads <= 0 && interOpThreads <= 0 && !usePerSessionThreads && OPTIMIZER_DEFAULT.equals(
+				optimizerLevel );
+	}
+
+	/**
+	 * @return the options for one of {@code sessions} sessions running at the
+	 *         same time. The threads are split evenly, each session gets its
+	 *         own thread pools.
+	 */
+	public SessionConfig split( final int sessions ) {
+		final int intra = intraOpThreads > 0 ? intraOpThreads : Runtime.getRuntime().availableProcessors();
+		return new SessionConfig(
+				Math.max( 1, intra / sessions ),
+				Math.max( 1, interOpThreads / sessions ),
+				true,
+				optimizerLevel );
+	}
+
+	public byte[] toConfigProto() {
+		final ConfigProto.Builder config = ConfigProto.newBuilder();
+		if ( intraOpThreads > 0 ) {
+			config.setIntraOpParallelismThreads( intraOpThreads );
+		}
+		if ( interOpThreads > 0 ) {
+			config.setInterOpParallelismThreads( interOpThreads );
+		}
+		config.setUsePerSessionThreads( usePerSessionThreads );
+		if ( OPTIMIZER_L1.equals( optimizerLevel ) ) {
+			config.setGraphOptions( GraphOptions.newBuilder().setOptimizerOptions(
+					OptimizerOptions.newBuilder().setOptLevel( OptimizerOptions.Level.L1 ) ) );
+		} else if ( OPTIMIZER_L0.equals( optimizerLevel ) ) {
+			config.setGraphOptions( GraphOptions.newBuilder().setOptimizerOptions(
+					OptimizerOptions.newBuilder().setOptLevel( OptimizerOptions.Level.L0 ) ) );
+		}
+		return config.build().toByteArray();
+	}
+
+	public int getIntraOpThreads() {
+		return intraOpThreads;
+	}
+
+	public void setIntraOpThreads( final int intraOpThreads ) {
+		this.intraOpThreads = intraOpThreads;
+	}
+
+	public int getInterOpThreads() {
+		return interOpThreads;
+	}
+
+	public void setInterOpThreads( final int interOpThreads ) {
+		this.interOpThreads = interOpThreads;
+	}
+
+	public boolean isUsePerSessionThreads() {
+		return usePerSessionThreads;
+	}
+
+	public void setUsePerSessionThreads( final boolean usePerSessionThreads ) {
+		this.usePerSessionThreads = usePerSessionThreads;
+	}
+
+	public String getOptimizerLevel() {
+		return optimizerLevel;
+	}
+
+	public void setOptimizerLevel( final String optimizerLevel ) {
+		this.optimizerLevel = optimizerLevel;
+	}
+
+	@Override
+	public String toString() {
+		return "intra-op threads " + intraOpThreads + ", inter-op threads " + interOpThreads + ", per session threads " + usePerSessionThreads + ", optimizer " + optimizerLevel;
+	}
+
+}
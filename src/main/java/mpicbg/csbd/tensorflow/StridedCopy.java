@@ -0,0 +1,530 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.tensorflow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mpicbg.csbd.imglib2.ArrayRegion;
+import mpicbg.csbd.normalize.Normalizer;
+
+/**
+ * Copies strided regions of arrays into buffers or other arrays.
+ *
+ * If the source and the destination are contiguous along different
+ * dimensions, i.e. the axis mapping is a real transpose, the copy runs over
+ * square blocks of these two dimensions so that reads and writes both stay
+ * within a few cache lines.
+ *
+ * Large copies are split into slices of the outermost dimension which are
+ * copied by a pool of threads shared by the whole process. Each copy caps
+ * the number of slices it is split into, so concurrent predictions with
+ * different thread counts do not affect each other.
+ */
+class StridedCopy {
+
+	/** Edge length of the blocks used for transposing copies. */
+	static final int BLOCK = 64;
+
+	/** Copies of fewer elements per thread are not split. */
+	static final long MIN_ELEMENTS_PER_THREAD = 1 << 18;
+
+	private static ExecutorService pool;
+
+	/**
+	 * Copies the region, normalizing the values if it has a normalizer.
+	 *
+	 * @param region
+	 *            the source
+	 * @param shape
+	 *            the shape of the destination, slowest dimension first
+	 * @param steps
+	 *            the step in the array of the region for each dimension of
+	 *            {@code shape}
+	 * @param dst
+	 *            the destination, filled from its current position
+	 * @param threads
+	 *            the maximum number of threads copying, all available cores
+	 *            if smaller than one
+	 */
+	static void copy(
+			final ArrayRegion region,
+			final long[] shape,
+			final long[] steps,
+			final TensorTarget dst,
+			final int threads ) {
+
+		// Dimensions of size one do not change the order of the elements
+		final int[] dims = nonSingletonDims( shape );
+		final int n = dims.length;
+		final long[] size = new long[ n ];
+		final long[] srcSteps = new long[ n ];
+		final long[] dstSteps = new long[ n ];
+		long stride = 1;
+		for ( int d = n - 1; d >= 0; d-- ) {
+			size[ d ] = shape[ dims[ d ] ];
+			srcSteps[ d ] = steps[ dims[ d ] ];
+			dstSteps[ d ] = stride;
+			stride *= size[ d ];
+		}
+
+		final Object src = region.getArray();
+		final boolean unsigned = region.isUnsigned();
+		final Normalizer< ? > normalizer = region.getNormalizer();
+		final int inner = n - 1;
+		final int across = getAcross( size, srcSteps, dstSteps );
+		final int[] outer = getOuterDims( n, inner, across );
+		final int origin = dst.position();
+
+		// Slices of the outermost dimension are independent of each other
+		split( outer, size, stride, threads, ( d, from, to ) -> {
+			final long[] part = size.clone();
+			long srcOffset = region.getOffset();
+			long dstOffset = origin;
+			if ( d >= 0 ) {
+				part[ d ] = to - from;
+				srcOffset += from * srcSteps[ d ];
+				dstOffset += from * dstSteps[ d ];
+			}
+			final TensorTarget partDst = dst.duplicate();
+			partDst.position( ( int ) dstOffset );
+			copy( src, unsigned, normalizer, srcOffset, part, srcSteps, dstSteps, inner, across, outer, partDst );
+		} );
+		dst.position( origin + ( int ) stride );
+	}
+
+	private static void copy(
+			final Object src,
+			final boolean unsigned,
+			final Normalizer< ? > normalizer,
+			final long srcOffset,
+			final long[] size,
+			final long[] srcSteps,
+			final long[] dstSteps,
+			final int inner,
+			final int across,
+			final int[] outer,
+			final TensorTarget dst ) {
+
+		final int origin = dst.position();
+		final float[] row = new float[ across < 0 ? ( int ) size[ inner ] : BLOCK ];
+		final long[] position = new long[ size.length ];
+		while ( true ) {
+			long srcStart = srcOffset;
+			long dstStart = origin;
+			for ( final int d : outer ) {
+				srcStart += position[ d ] * srcSteps[ d ];
+				dstStart += position[ d ] * dstSteps[ d ];
+			}
+			if ( across < 0 ) {
+				copyRow( src, unsigned, normalizer, ( int ) srcStart, ( int ) srcSteps[ inner ], row, dst );
+			} else {
+				copyBlocks(
+						src,
+						unsigned,
+						normalizer,
+						( int ) srcStart,
+						( int ) srcSteps[ inner ],
+						( int ) srcSteps[ across ],
+						( int ) size[ inner ],
+						( int ) size[ across ],
+						row,
+						dst,
+						( int ) dstStart,
+						( int ) dstSteps[ across ] );
+			}
+			if ( !next( outer, size, position ) ) { return; }
+		}
+	}
+
+	/**
+	 * Copies between two strided float array regions of the given size using
+	 * at most {@code threads} threads.
+	 */
+	static void copy(
+			final float[] src,
+			final int srcOffset,
+			final long[] srcSteps,
+			final float[] dst,
+			final int dstOffset,
+			final long[] dstSteps,
+			final long[] dims,
+			final int threads ) {
+
+		final int[] kept = nonSingletonDims( dims );
+		final int n = kept.length;
+		final long[] size = new long[ n ];
+		final long[] srcStep = new long[ n ];
+		final long[] dstStep = new long[ n ];
+		for ( int d = 0; d < n; d++ ) {
+			size[ d ] = dims[ kept[ d ] ];
+			srcStep[ d ] = srcSteps[ kept[ d ] ];
+			dstStep[ d ] = dstSteps[ kept[ d ] ];
+		}
+
+		// Walk the destination in memory order
+		final int inner = getSmallestStep( dstStep );
+		final int across = getAcross( size, srcStep, dstStep );
+		final int[] outer = getOuterDims( n, inner, across );
+		long count = 1;
+		for ( final long d : size ) {
+			count *= d;
+		}
+		split( outer, size, count, threads, ( d, from, to ) -> {
+			final long[] part = size.clone();
+			long srcPart = srcOffset;
+			long dstPart = dstOffset;
+			if ( d >= 0 ) {
+				part[ d ] = to - from;
+				srcPart += from * srcStep[ d ];
+				dstPart += from * dstStep[ d ];
+			}
+			copy( src, srcPart, srcStep, dst, dstPart, dstStep, part, inner, across, outer );
+		} );
+	}
+
+	private static void copy(
+			final float[] src,
+			final long srcOffset,
+			final long[] srcStep,
+			final float[] dst,
+			final long dstOffset,
+			final long[] dstStep,
+			final long[] size,
+			final int inner,
+			final int across,
+			final int[] outer ) {
+
+		final long[] position = new long[ size.length ];
+		while ( true ) {
+			long srcStart = srcOffset;
+			long dstStart = dstOffset;
+			for ( final int d : outer ) {
+				srcStart += position[ d ] * srcStep[ d ];
+				dstStart += position[ d ] * dstStep[ d ];
+			}
+			if ( across < 0 ) {
+				copyRow(
+						src,
+						( int ) srcStart,
+						( int ) srcStep[ inner ],
+						dst,
+						( int ) dstStart,
+						( int ) dstStep[ inner ],
+						( int ) size[ inner ] );
+			} else {
+				final int nInner = ( int ) size[ inner ];
+				final int nAcross = ( int ) size[ across ];
+				for ( int j0 = 0; j0 < nInner; j0 += BLOCK ) {
+					final int j1 = Math.min( nInner, j0 + BLOCK );
+					for ( int i0 = 0; i0 < nAcross; i0 += BLOCK ) {
+						final int length = Math.min( nAcross, i0 + BLOCK ) - i0;
+						for ( int j = j0; j < j1; j++ ) {
+							copyRow(
+									src,
+									( int ) ( srcStart + j * srcStep[ inner ] + i0 * srcStep[ across ] ),
+									( int ) srcStep[ across ],
+									dst,
+									( int ) ( dstStart + j * dstStep[ inner ] + i0 * dstStep[ across ] ),
+									( int ) dstStep[ across ],
+									length );
+						}
+					}
+				}
+			}
+			if ( !next( outer, size, position ) ) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Runs {@code part} for slices of the first outer dimension, in parallel if
+	 * the copy is large enough. The slices do not overlap, so the result does
+	 * not depend on the number of threads.
+	 *
+	 * @param threads
+	 *            the maximum number of slices, at most the number of available
+	 *            cores, all of them if smaller than one
+	 */
+	static void split( final int[] outer, final long[] size, final long count, final int threads, final Part part ) {
+		final int d = outer.length > 0 ? outer[ 0 ] : -1;
+		final int cores = Runtime.getRuntime().availableProcessors();
+		// The pool has one thread less than there are cores
+		final int maxParts = threads > 0 ? Math.min( threads, cores ) : cores;
+		final long parts = d < 0 || maxParts <= 1 ? 1 : Math.min(
+				Math.min( maxParts, count / MIN_ELEMENTS_PER_THREAD ),
+				size[ d ] );
+		if ( parts <= 1 ) {
+			part.copy( d, 0, d < 0 ? 1 : size[ d ] );
+			return;
+		}
+
+		final ExecutorService pool = getPool();
+		final List< Future< ? > > futures = new ArrayList<>();
+		try {
+			for ( int i = 1; i < parts; i++ ) {
+				final long from = size[ d ] * i / parts;
+				final long to = size[ d ] * ( i + 1 ) / parts;
+				futures.add( pool.submit( () -> part.copy( d, from, to ) ) );
+			}
+			// The calling thread copies the first slice itself
+			part.copy( d, 0, size[ d ] / parts );
+			for ( final Future< ? > future : futures ) {
+				future.get();
+			}
+		} catch ( final InterruptedException exc ) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException( "Tile conversion interrupted." );
+		} catch ( final ExecutionException exc ) {
+			throw new RuntimeException( exc.getCause() );
+		} finally {
+			for ( final Future< ? > future : futures ) {
+				future.cancel( true );
+			}
+		}
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if ( pool == null ) {
+			// The calling thread takes part in each copy
+			pool = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() - 1, r -> {
+				final Thread thread = new Thread( r, "CSBDeep tile conversion" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+		}
+		return pool;
+	}
+
+	interface Part {
+
+		void copy( int d, long from, long to );
+	}
+
+	private static void copyRow(
+			final float[] src,
+			final int srcStart,
+			final int srcStep,
+			final float[] dst,
+			final int dstStart,
+			final int dstStep,
+			final int length ) {
+		if ( srcStep == 1 && dstStep == 1 ) {
+			System.arraycopy( src, srcStart, dst, dstStart, length );
+		} else {
+			for ( int i = 0, j = srcStart, k = dstStart; i < length; i++, j += srcStep, k += dstStep ) {
+				dst[ k ] = src[ j ];
+			}
+		}
+	}
+
+	/**
+	 * Appends one row of the destination.
+	 */
+	private static void copyRow(
+			final Object src,
+			final boolean unsigned,
+			final Normalizer< ? > normalizer,
+			final int start,
+			final int step,
+			final float[] row,
+			final TensorTarget dst ) {
+		if ( normalizer == null && step == 1 && src instanceof float[] ) {
+			dst.put( ( float[] ) src, start, row.length );
+			return;
+		}
+		readRow( src, unsigned, start, step, row, row.length );
+		normalize( normalizer, row, row.length );
+		dst.put( row, 0, row.length );
+	}
+
+	/**
+	 * Copies a plane of the destination in blocks. Reads run along the
+	 * contiguous dimension of the source ({@code across}), writes along the
+	 * contiguous dimension of the destination ({@code inner}).
+	 */
+	private static void copyBlocks(
+			final Object src,
+			final boolean unsigned,
+			final Normalizer< ? > normalizer,
+			final int srcStart,
+			final int srcInner,
+			final int srcAcross,
+			final int nInner,
+			final int nAcross,
+			final float[] row,
+			final TensorTarget dst,
+			final int dstStart,
+			final int dstAcross ) {
+		for ( int j0 = 0; j0 < nInner; j0 += BLOCK ) {
+			final int j1 = Math.min( nInner, j0 + BLOCK );
+			for ( int i0 = 0; i0 < nAcross; i0 += BLOCK ) {
+				final int length = Math.min( nAcross, i0 + BLOCK ) - i0;
+				for ( int j = j0; j < j1; j++ ) {
+					readRow( src, unsigned, srcStart + j * srcInner + i0 * srcAcross, srcAcross, row, length );
+					normalize( normalizer, row, length );
+					for ( int i = 0, k = dstStart + j + i0 * dstAcross; i < length; i++, k += dstAcross ) {
+						dst.put( k, row[ i ] );
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the dimension along which the source is contiguous if the copy
+	 *         should be blocked, -1 if copying rows of the destination is
+	 *         fine
+	 */
+	private static int getAcross( final long[] size, final long[] srcSteps, final long[] dstSteps ) {
+		if ( size.length < 2 ) { return -1; }
+		final int inner = getSmallestStep( dstSteps );
+		final int across = getSmallestStep( srcSteps );
+		if ( across == inner || Math.abs( srcSteps[ inner ] ) <= 1 ) { return -1; }
+		return across;
+	}
+
+	private static int getSmallestStep( final long[] steps ) {
+		int smallest = 0;
+		for ( int d = 1; d < steps.length; d++ ) {
+			if ( Math.abs( steps[ d ] ) < Math.abs( steps[ smallest ] ) ) {
+				smallest = d;
+			}
+		}
+		return smallest;
+	}
+
+	/**
+	 * @return the dimensions that are not copied within one row or block,
+	 *         slowest first
+	 */
+	private static int[] getOuterDims( final int n, final int inner, final int across ) {
+		final int[] outer = new int[ n - ( across < 0 ? 1 : 2 ) ];
+		int i = 0;
+		for ( int d = 0; d < n; d++ ) {
+			if ( d != inner && d != across ) {
+				outer[ i++ ] = d;
+			}
+		}
+		return outer;
+	}
+
+	/**
+	 * Moves to the next position of the outer dimensions.
+	 *
+	 * @return false if all positions have been visited
+	 */
+	private static boolean next( final int[] outer, final long[] size, final long[] position ) {
+		for ( int k = outer.length - 1; k >= 0; k-- ) {
+			final int d = outer[ k ];
+			if ( ++position[ d ] < size[ d ] ) { return true; }
+			position[ d ] = 0;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the indices of the dimensions larger than one, at least one
+	 *         index
+	 */
+	private static int[] nonSingletonDims( final long[] shape ) {
+		int n = 0;
+		for ( final long d : shape ) {
+			if ( d > 1 ) {
+				n++;
+			}
+		}
+		if ( n == 0 ) { return new int[] { shape.length - 1 }; }
+		final int[] dims = new int[ n ];
+		n = 0;
+		for ( int d = 0; d < shape.length; d++ ) {
+			if ( shape[ d ] > 1 ) {
+				dims[ n++ ] = d;
+			}
+		}
+		return dims;
+	}
+
+	private static void normalize( final Normalizer< ? > normalizer, final float[] row, final int length ) {
+		if ( normalizer == null ) { return; }
+		for ( int i = 0; i < length; i++ ) {
+			row[ i ] = normalizer.normalize( row[ i ] );
+		}
+	}
+
+	/**
+	 * Reads {@code length} values starting at {@code start} as floats.
+	 */
+	private static void readRow(
+			final Object src,
+			final boolean unsigned,
+			final int start,
+			final int step,
+			final float[] row,
+			final int length ) {
+		if ( src instanceof float[] ) {
+			final float[] values = ( float[] ) src;
+			for ( int i = 0, j = start; i < length; i++, j += step ) {
+				row[ i ] = values[ j ];
+			}
+		} else if ( src instanceof short[] ) {
+			final short[] values = ( short[] ) src;
+			final int mask = unsigned ? 0xffff : -1;
+			for ( int i = 0, j = start; i < length; i++, j += step ) {
+				row[ i ] = values[ j ] & mask;
+			}
+		} else if ( src instanceof byte[] ) {
+			final byte[] values = ( byte[] ) src;
+			final int mask = unsigned ? 0xff : -1;
+			for ( int i = 0, j = start; i < length; i++, j += step ) {
+				row[ i ] = values[ j ] & mask;
+			}
+		} else if ( src instanceof int[] ) {
+			final int[] values = ( int[] ) src;
+			final long mask = unsigned ? 0xffffffffL : -1L;
+			for ( int i = 0, j = start; i < length; i++, j += step ) {
+				row[ i ] = values[ j ] & mask;
+			}
+		} else if ( src instanceof double[] ) {
+			final double[] values = ( double[] ) src;
+			for ( int i = 0, j = start; i < length; i++, j += step ) {
+				row[ i ] = ( float ) values[ j ];
+			}
+		} else {
+			throw new IllegalArgumentException( "Unsupported array type " + src.getClass() );
+		}
+	}
+
+}
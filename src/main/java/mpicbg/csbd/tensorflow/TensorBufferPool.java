@@ -0,0 +1,168 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.tensorflow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.tensorflow.DataType;
+
+/**
+ * Keeps the buffers used to fill and read tensors so that tiles of the same
+ * shape reuse them instead of allocating new ones. Direct buffers are used to
+ * create input tensors, float arrays to read output tensors.
+ */
+public class TensorBufferPool {
+
+	public static final int DEFAULT_MAX_BUFFERS_PER_SHAPE = 8;
+
+	private final int maxBuffersPerShape;
+	private final Map< String, Deque< Object > > free = new HashMap<>();
+
+	public TensorBufferPool() {
+		this( DEFAULT_MAX_BUFFERS_PER_SHAPE );
+	}
+
+	public TensorBufferPool( final int maxBuffersPerShape ) {
+		this.maxBuffersPerShape = maxBuffersPerShape;
+	}
+
+	/**
+	 * @return a direct buffer in native byte order large enough for a tensor
+	 *         of the given type and shape, positioned at zero
+	 */
+	public ByteBuffer acquire( final DataType type, final long[] shape ) {
+		final ByteBuffer buffer = ( ByteBuffer ) poll( key( type, shape ) );
+		if ( buffer != null ) {
+			buffer.clear();
+			return buffer;
+		}
+		return ByteBuffer.allocateDirect( numBytes( type, shape ) ).order( ByteOrder.nativeOrder() );
+	}
+
+	public void release( final DataType type, final long[] shape, final ByteBuffer buffer ) {
+		offer( key( type, shape ), buffer );
+	}
+
+	/**
+	 * @return a float array large enough for a tensor of the given shape
+	 */
+	public float[] acquireArray( final long[] shape ) {
+		final float[] array = ( float[] ) poll( key( null, shape ) );
+		return array != null ? array : new float[ ( int ) numElements( shape ) ];
+	}
+
+	public void releaseArray( final long[] shape, final float[] array ) {
+		offer( key( null, shape ), array );
+	}
+
+	public synchronized void clear() {
+		free.clear();
+	}
+
+	private synchronized Object poll( final String key ) {
+		final Deque< Object > buffers = free.get( key );
+		return buffers == null ? null : buffers.poll();
+	}
+
+	private synchronized void offer( final String key, final Object buffer ) {
+		Deque< Object > buffers = free.get( key );
+		if ( buffers == null ) {
+			buffers = new ArrayDeque<>();
+			free.put( key, buffers );
+		}
+		if ( buffers.size() < maxBuffersPerShape ) {
+			buffers.push( buffer );
+		}
+	}
+
+	private static String key( final DataType type, final long[] shape ) {
+		return ( type == null ? "array" : type.name() ) + Arrays.toString( shape );
+	}
+
+	/**
+	 * @return the number of elements of a tensor of the given shape
+	 * @throws IllegalArgumentException
+	 *             if the elements do not fit into an array
+	 */
+	public static long numElements( final long[] shape ) {
+		long size = 1;
+		for ( final long d : shape ) {
+			size *= d;
+		}
+		if ( size > Integer.MAX_VALUE ) { throw new IllegalArgumentException(
+				"Tensor of shape " + Arrays.toString( shape ) + " is too large for an array." ); }
+		return size;
+	}
+
+	/**
+	 * @return the size in bytes of a tensor of the given type and shape
+	 * @throws IllegalArgumentException
+	 *             if the tensor does not fit into a buffer
+	 */
+	public static int numBytes( final DataType type, final long[] shape ) {
+		final long bytes = numElements( shape ) * getBytesPerElement( type );
+		if ( bytes > Integer.MAX_VALUE ) { throw new IllegalArgumentException(
+				"Tensor of shape " + Arrays.toString( shape ) + " is too large for a buffer." ); }
+		return ( int ) bytes;
+	}
+
+	public static int getBytesPerElement( final DataType type ) {
+		return getBytesPerElement( org.tensorflow.framework.DataType.valueOf( "DT_" + type.name() ) );
+	}
+
+	/**
+	 * @return the size of one element of a tensor of the given type, 4 for
+	 *         types of unknown size
+	 */
+	public static int getBytesPerElement( final org.tensorflow.framework.DataType type ) {
+		switch ( type ) {
+		case DT_UINT8:
+		case DT_INT8:
+		case DT_BOOL:
+			return 1;
+		case DT_HALF:
+		case DT_BFLOAT16:
+		case DT_UINT16:
+		case DT_INT16:
+			return 2;
+		case DT_DOUBLE:
+		case DT_INT64:
+			return 8;
+		default:
+			return 4;
+		}
+	}
+
+}
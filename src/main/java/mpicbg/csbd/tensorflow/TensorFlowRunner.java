@@ -28,59 +28,27 @@
  */
 package mpicbg.csbd.tensorflow;
 
-import java.util.Arrays;
-
 import javax.swing.JOptionPane;
 
-import org.tensorflow.SavedModelBundle;
-import org.tensorflow.Tensor;
-import org.tensorflow.framework.TensorInfo;
-
 public class TensorFlowRunner {
 
-	/*
-	 * runs graph on input tensor
-	 * converts result tensor to dataset
+	/**
+	 * The SignatureDef inputs and outputs contain names of the form
+	 * {@code <operation_name>:<output_index>}. This function trims the
+	 * {@code :<output_index>} suffix to get the operation name.
 	 */
-	public static Tensor executeGraph(
-			final SavedModelBundle model,
-			final Tensor image,
-			final TensorInfo inputTensorInfo,
-			final TensorInfo outputTensorInfo ) throws Exception {
-
-		System.out.println(
-				"executeInceptionGraph with input shape " + Arrays.toString( image.shape() ) );
-
-		final Tensor output_t = model
-				.session()
-				.runner() //
-				.feed( opName( inputTensorInfo ), image ) //
-				.fetch( opName( outputTensorInfo ) ) //
-				.run()
-				.get( 0 );
-
-		if ( output_t != null ) {
-
-			if ( output_t.numDimensions() == 0 ) {
-				showError( "Output tensor has no dimensions" );
-				return null;
-			}
-
-			return output_t;
-		}
-		return null;
+	static String getOperationName( final String name ) {
+		final int colon = name.lastIndexOf( ':' );
+		return colon < 0 ? name : name.substring( 0, colon );
 	}
 
 	/**
-	 * The SignatureDef inputs and outputs contain names of the form
-	 * {@code <operation_name>:<output_index>}, where for this model,
-	 * {@code <output_index>} is always 0. This function trims the {@code :0}
-	 * suffix to get the operation name.
+	 * @return the output index of a name of the form
+	 *         {@code <operation_name>:<output_index>}, 0 if there is none
 	 */
-	private static String opName( final TensorInfo t ) {
-		final String n = t.getName();
-		if ( n.endsWith( ":0" ) ) { return n.substring( 0, n.lastIndexOf( ":0" ) ); }
-		return n;
+	static int getOutputIndex( final String name ) {
+		final int colon = name.lastIndexOf( ':' );
+		return colon < 0 ? 0 : Integer.parseInt( name.substring( colon + 1 ) );
 	}
 
 	public static void showError( final String errorMsg ) {
@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.tensorflow;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import org.tensorflow.DataType;
+
+/**
+ * Buffer a tensor is filled from. Values are passed as floats and stored in
+ * the data type of the tensor.
+ */
+abstract class TensorTarget {
+
+	static TensorTarget create( final ByteBuffer buffer, final DataType type ) {
+		switch ( type ) {
+		case FLOAT:
+			return new FloatTarget( buffer.asFloatBuffer() );
+		case UINT8:
+			return new UInt8Target( buffer.duplicate() );
+		default:
+			throw new IllegalArgumentException( "Can not fill a tensor of type " + type + "." );
+		}
+	}
+
+	abstract int position();
+
+	abstract void position( int position );
+
+	/**
+	 * @return a target sharing the content with an independent position
+	 */
+	abstract TensorTarget duplicate();
+
+	abstract void put( float value );
+
+	abstract void put( float[] values, int offset, int length );
+
+	abstract void put( int index, float value );
+
+	private static class FloatTarget extends TensorTarget {
+
+		private final FloatBuffer buffer;
+
+		FloatTarget( final FloatBuffer buffer ) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		int position() {
+			return buffer.position();
+		}
+
+		@Override
+		void position( final int position ) {
+			buffer.position( position );
+		}
+
+		@Override
+		TensorTarget duplicate() {
+			return new FloatTarget( buffer.duplicate() );
+		}
+
+		@Override
+		void put( final float value ) {
+			buffer.put( value );
+		}
+
+		@Override
+		void put( final float[] values, final int offset, final int length ) {
+			buffer.put( values, offset, length );
+		}
+
+		@Override
+		void put( final int index, final float value ) {
+			buffer.put( index, value );
+		}
+	}
+
+	/**
+	 * Rounds and saturates the values to 0..255.
+	 */
+	private static class UInt8Target extends TensorTarget {
+
+		private final ByteBuffer buffer;
+
+		UInt8Target( final ByteBuffer buffer ) {
+			this.buffer = buffer;
+		}
+
+		private static byte toUInt8( final float value ) {
+			return ( byte ) Math.max( 0, Math.min( 255, Math.round( value ) ) );
+		}
+
+		@Override
+		int position() {
+			return buffer.position();
+		}
+
+		@Override
+		void position( final int position ) {
+			buffer.position( position );
+		}
+
+		@Override
+		TensorTarget duplicate() {
+			return new UInt8Target( buffer.duplicate() );
+		}
+
+		@Override
+		void put( final float value ) {
+			buffer.put( toUInt8( value ) );
+		}
+
+		@Override
+		void put( final float[] values, final int offset, final int length ) {
+			for ( int i = offset; i < offset + length; i++ ) {
+				buffer.put( toUInt8( values[ i ] ) );
+			}
+		}
+
+		@Override
+		void put( final int index, final float value ) {
+			buffer.put( index, toUInt8( value ) );
+		}
+	}
+
+}
@@ -0,0 +1,232 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.commands;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.tensorflow.DataType;
+import org.tensorflow.framework.TensorInfo;
+import org.tensorflow.framework.TensorShapeProto;
+
+import mpicbg.csbd.backend.InferenceBackend;
+import mpicbg.csbd.backend.ReferenceBackend;
+import mpicbg.csbd.tensorflow.DatasetTensorBridge;
+import mpicbg.csbd.ui.CSBDeepProgress;
+
+/**
+ * Runs tiled predictions through the {@link ReferenceBackend}, whose box
+ * filter gives the same result for every tiling as long as the overlap
+ * covers its radius.
+ */
+public class TiledPredictionTest {
+
+	private static final long WIDTH = 100, HEIGHT = 77;
+	private static final int RADIUS = 2;
+	private static final int BLOCK_MULTIPLE = 4;
+	private static final int OVERLAP = 8;
+
+	private Context context;
+	private Img< FloatType > image;
+	private Dataset dataset;
+
+	@Before
+	public void setUp() {
+		context = new Context( DatasetService.class );
+		image = ArrayImgs.floats( WIDTH, HEIGHT );
+		final Random random = new Random( 1 );
+		for ( final FloatType t : image ) {
+			t.set( random.nextFloat() );
+		}
+		dataset = context.service( DatasetService.class ).create(
+				new ImgPlus<>( image, "input", new AxisType[] { Axes.X, Axes.Y } ) );
+	}
+
+	@After
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Test
+	public void testUntiledMatchesBoxFilter() throws Exception {
+		final RandomAccessibleInterval< FloatType > result = predict( 1, 1, 1 );
+		assertEquals( WIDTH, result.dimension( 0 ) );
+		assertEquals( HEIGHT, result.dimension( 1 ) );
+		final RandomAccess< FloatType > in = image.randomAccess();
+		final RandomAccess< FloatType > out = result.randomAccess();
+		for ( long y = RADIUS; y < HEIGHT - RADIUS; y++ ) {
+			for ( long x = RADIUS; x < WIDTH - RADIUS; x++ ) {
+				float sum = 0;
+				for ( long dy = -RADIUS; dy <= RADIUS; dy++ ) {
+					for ( long dx = -RADIUS; dx <= RADIUS; dx++ ) {
+						in.setPosition( new long[] { x + dx, y + dy } );
+						sum += in.get().get();
+					}
+				}
+				out.setPosition( new long[] { x, y } );
+				// The filter also runs over the Z dimension of size one
+				final int window = 2 * RADIUS + 1;
+				assertEquals( sum / ( window * window * window ), out.get().get(), 1e-6 );
+			}
+		}
+	}
+
+	@Test
+	public void testTilingMatchesUntiled() throws Exception {
+		final RandomAccessibleInterval< FloatType > expected = predict( 1, 1, 1 );
+		assertSame( expected, predict( 6, 1, 1 ) );
+		assertSame( expected, predict( 9, 1, 3 ) );
+	}
+
+	@Test
+	public void testStackedTilesMatchUntiled() throws Exception {
+		final RandomAccessibleInterval< FloatType > expected = predict( 1, 1, 1 );
+		assertSame( expected, predict( 6, 4, 1 ) );
+		assertSame( expected, predict( 12, 5, 2 ) );
+	}
+
+	@Test
+	public void testAdditionalOutputsAreStitched() throws Exception {
+		for ( final int[] tiling : new int[][] { { 1, 1, 1 }, { 9, 1, 3 }, { 12, 5, 2 } } ) {
+			final TiledPrediction prediction = createPrediction( tiling[ 0 ], tiling[ 1 ] );
+			// The second head returns the input unchanged
+			final ReferenceBackend identity = new ReferenceBackend( 0 );
+			prediction.setBackend( new ReferenceBackend( DataType.FLOAT, RADIUS, tiling[ 2 ] ) {
+
+				@Override
+				public int getOutputCount() {
+					return 2;
+				}
+
+				@Override
+				public List< InferenceBackend.Output > runAll( final InferenceBackend.Input input ) {
+					return Arrays.asList( run( input ), identity.run( input ) );
+				}
+
+			} );
+			assertNotNull( prediction.runModel( prediction.preprocess() ) );
+			assertEquals( 1, prediction.getHeadOutputs().size() );
+			final RandomAccessibleInterval< FloatType > head =
+					Views.dropSingletonDimensions( prediction.getHeadOutputs().get( 0 ) );
+			assertEquals( WIDTH, head.dimension( 0 ) );
+			assertEquals( HEIGHT, head.dimension( 1 ) );
+			final Cursor< FloatType > e = image.localizingCursor();
+			final RandomAccess< FloatType > a = head.randomAccess();
+			while ( e.hasNext() ) {
+				e.fwd();
+				a.setPosition( e );
+				assertEquals( e.get().get(), a.get().get(), 0 );
+			}
+		}
+	}
+
+	private RandomAccessibleInterval< FloatType > predict( final int nTiles, final int tilesPerRun, final int concurrency )
+			throws Exception {
+		final TiledPrediction prediction = createPrediction( nTiles, tilesPerRun );
+		prediction.setBackend( new ReferenceBackend( DataType.FLOAT, RADIUS, concurrency ) );
+		final RandomAccessibleInterval< FloatType > result = prediction.runModel( prediction.preprocess() );
+		assertNotNull( result );
+		return Views.dropSingletonDimensions( result );
+	}
+
+	private TiledPrediction createPrediction( final int nTiles, final int tilesPerRun ) {
+		final DatasetTensorBridge bridge = new DatasetTensorBridge( dataset );
+		bridge.setInputTensor( tensorInfo( "input:0" ) );
+		bridge.setOutputTensor( tensorInfo( "output:0" ) );
+		bridge.setMappingDefaults();
+		final TiledPrediction prediction = new TiledPrediction(
+				image,
+				bridge,
+				null,
+				new CSBDeepProgress( false ),
+				nTiles,
+				BLOCK_MULTIPLE,
+				OVERLAP );
+		prediction.setTilesPerRun( tilesPerRun );
+		return prediction;
+	}
+
+	/**
+	 * A 5D float tensor with a single channel.
+	 */
+	private static TensorInfo tensorInfo( final String name ) {
+		final TensorShapeProto.Builder shape = TensorShapeProto.newBuilder();
+		for ( int i = 0; i < 5; i++ ) {
+			shape.addDim( TensorShapeProto.Dim.newBuilder().setSize( i == 4 ? 1 : -1 ) );
+		}
+		return TensorInfo.newBuilder().setName( name ).setDtype(
+				org.tensorflow.framework.DataType.DT_FLOAT ).setTensorShape( shape ).build();
+	}
+
+	/**
+	 * Compares the results away from the image border. Within the radius of
+	 * the filter the results depend on how the image got padded, which
+	 * differs between tilings.
+	 */
+	private static void assertSame(
+			final RandomAccessibleInterval< FloatType > expected,
+			final RandomAccessibleInterval< FloatType > actual ) {
+		assertEquals( expected.numDimensions(), actual.numDimensions() );
+		for ( int d = 0; d < expected.numDimensions(); d++ ) {
+			assertEquals( expected.dimension( d ), actual.dimension( d ) );
+		}
+		final Interval interior = Intervals.expand( expected, -RADIUS );
+		final Cursor< FloatType > e = Views.flatIterable( Views.interval( expected, interior ) ).localizingCursor();
+		final RandomAccess< FloatType > a = actual.randomAccess();
+		while ( e.hasNext() ) {
+			e.fwd();
+			a.setPosition( e );
+			assertEquals( e.get().get(), a.get().get(), 1e-6 );
+		}
+	}
+
+}
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2018 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package mpicbg.csbd.tensorflow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+import org.tensorflow.DataType;
+
+import mpicbg.csbd.imglib2.ArrayRegion;
+
+/**
+ * Compares the strided and cache blocked copies of {@link StridedCopy} with
+ * the generic element-wise copy of {@link DatasetConverter}.
+ */
+public class StridedCopyTest {
+
+	@Test
+	public void testContiguous() {
+		// Image X becomes the last, contiguous tensor dimension
+		assertSameAsGeneric( image( 67, 45, 3 ), new int[] { 2, 1, 0 } );
+	}
+
+	@Test
+	public void testTransposed() {
+		// Sizes which are no multiple of the block size
+		assertSameAsGeneric( image( 130, 71, 3 ), new int[] { 1, 2, 0 } );
+		assertSameAsGeneric( image( 65, 129, 2 ), new int[] { 0, 2, 1 } );
+	}
+
+	@Test
+	public void testSliced() {
+		final ArrayImg< FloatType, FloatArray > image = image( 130, 71, 5 );
+		assertSameAsGeneric( Views.interval( image, new long[] { 3, 7, 1 }, new long[] { 100, 69, 3 } ), new int[] { 1, 2, 0 } );
+		assertSameAsGeneric( Views.zeroMin( Views.hyperSlice( image, 2, 4 ) ), new int[] { 0, 1 } );
+		assertSameAsGeneric( Views.permute( image, 0, 1 ), new int[] { 2, 1, 0 } );
+		assertSameAsGeneric( Views.invertAxis( image, 0 ), new int[] { 1, 2, 0 } );
+	}
+
+	@Test
+	public void testParallelSplit() {
+		final ArrayImg< FloatType, FloatArray > image = image( 1027, 515, 3 );
+		final float[] single = toArray( image, new int[] { 1, 2, 0 }, 1 );
+		assertArrayEquals( single, toArray( image, new int[] { 1, 2, 0 }, 4 ), 0 );
+		assertSameAsGeneric( image, new int[] { 1, 2, 0 } );
+		assertSameAsGeneric( image, new int[] { 2, 1, 0 } );
+	}
+
+	@Test
+	public void testParallelGenericCopy() {
+		// A border tile reaching outside of the image takes the generic path
+		final RandomAccessibleInterval< FloatType > tile = Views.interval(
+				Views.extendMirrorDouble( image( 1027, 515, 3 ) ),
+				new long[] { -16, -16, 0 },
+				new long[] { 1042, 530, 2 } );
+		assertNull( ArrayRegion.resolve( tile ) );
+		final float[] single = toArray( tile, new int[] { 1, 2, 0 }, 1 );
+		assertArrayEquals( single, toArray( tile, new int[] { 1, 2, 0 }, 4 ), 0 );
+	}
+
+	@Test
+	public void testWriteToRegion() {
+		final ArrayImg< FloatType, FloatArray > image = image( 1027, 515, 3 );
+		for ( final RandomAccessibleInterval< FloatType > source : new RandomAccessibleInterval[] {
+				Views.interval( image, new long[] { 5, 3, 0 }, new long[] { 700, 400, 2 } ),
+				Views.interval( Views.permute( image, 0, 1 ), new long[] { 5, 3, 0 }, new long[] { 400, 700, 2 } ) } ) {
+			final ArrayImg< FloatType, FloatArray > output = ArrayImgs.floats( 1000, 1000, 4 );
+			final RandomAccessibleInterval< FloatType > target =
+					Views.interval( output, new long[] { 11, 13, 1 }, new long[] { 11 + source.dimension( 0 ) - 1,
+							13 + source.dimension( 1 ) - 1, 3 } );
+			assertNotNull( ArrayRegion.resolve( source ) );
+			assertTrue( DatasetConverter.writeToRegion( Views.zeroMin( source ), target, 4 ) );
+			final Cursor< FloatType > expected = Views.flatIterable( Views.zeroMin( source ) ).cursor();
+			final Cursor< FloatType > actual = Views.flatIterable( target ).cursor();
+			while ( expected.hasNext() ) {
+				assertEquals( expected.next().get(), actual.next().get(), 0 );
+			}
+		}
+	}
+
+	private static ArrayImg< FloatType, FloatArray > image( final long... dims ) {
+		final ArrayImg< FloatType, FloatArray > image = ArrayImgs.floats( dims );
+		final Random random = new Random( 42 );
+		for ( final FloatType t : image ) {
+			t.set( random.nextFloat() );
+		}
+		return image;
+	}
+
+	/**
+	 * Checks that the image is copied by {@link StridedCopy} and that the
+	 * result equals the generic copy.
+	 */
+	private static void assertSameAsGeneric( final RandomAccessibleInterval< FloatType > image, final int[] mapping ) {
+		assertNotNull( ArrayRegion.resolve( image ) );
+		final RandomAccessibleInterval< FloatType > generic =
+				Converters.convert( image, ( in, out ) -> out.set( in ), new FloatType() );
+		assertNull( ArrayRegion.resolve( generic ) );
+		assertArrayEquals( toArray( generic, mapping, 0 ), toArray( image, mapping, 0 ), 0 );
+	}
+
+	private static float[] toArray(
+			final RandomAccessibleInterval< FloatType > image,
+			final int[] mapping,
+			final int threads ) {
+		final long[] shape = DatasetConverter.getShape( image, mapping );
+		final int size = ( int ) TensorBufferPool.numElements( shape );
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( size * 4 ).order( ByteOrder.nativeOrder() );
+		DatasetConverter.datasetToBuffer( image, mapping, buffer, DataType.FLOAT, threads );
+		final float[] values = new float[ size ];
+		buffer.asFloatBuffer().get( values );
+		return values;
+	}
+
+}